@@ -11,9 +11,55 @@ public class Constant {
     // Redis Key 前缀定义
     public static class RedisPrefix {
 
-        // 优惠券码 key 前缀
+        // 优惠券码 key 前缀, 分片的码池每个分片的 key 为 前缀 + {模板 id_分片序号}
+        // 领取和预取的脚本还会访问用户、id 序列和节点预取的 key, 只支持单节点 Redis, 不支持 Redis Cluster
         public static final String COUPON_TEMPLATE = "coupon_template_code_";
 
+        // 二进制格式的优惠券码 key 前缀, 每个码 8 字节: 前 9 位和后 9 位各占一个大端 uint32
+        public static final String COUPON_TEMPLATE_BIN = "coupon_template_code_bin_";
+
+        // 优惠券码池元信息 key 前缀(hash: 生成种子, 已生成个数, 总数等), 分片的码池每个分片另有 前缀 + {模板 id_分片序号}, 记录分片的发放个数
+        public static final String COUPON_TEMPLATE_META = "coupon_template_code_meta_";
+
+        // 优惠券码池补充锁 key 前缀
+        public static final String COUPON_TEMPLATE_LOCK = "coupon_template_code_lock_";
+
+        // 按需生成优惠券码的模板 id 集合
+        public static final String COUPON_TEMPLATE_LAZY = "coupon_template_code_lazy";
+
+        // 已构建码池的模板 id 集合, 用于跨模板的优惠券码去重
+        public static final String COUPON_TEMPLATE_REGISTRY = "coupon_template_code_registry";
+
+        // 已过期模板的生成器参数(hash: 模板 id -> prefix_date_seed_cursor), 过期模板发出的码仍然参与去重
+        public static final String COUPON_TEMPLATE_RETIRED = "coupon_template_code_retired";
+
+        // 未完成的码池构建任务的模板 id 集合, 实例重启之后由存活的实例接管
+        public static final String COUPON_TEMPLATE_JOBS = "coupon_template_code_jobs";
+
+        // 码池构建任务的租约 key 前缀, 值为执行任务的实例 id, 执行期间定期续期
+        public static final String COUPON_TEMPLATE_JOB_LEASE = "coupon_template_code_job_";
+
+        // 各个实例正在推送的优惠券码(set), 推送之前加入, 推送之后移除, 并发生成的模板之间以它做最终的去重
+        public static final String COUPON_TEMPLATE_CLAIM = "coupon_template_code_claim";
+
+        // 码池推送的次数, 每推送一块加一, 去重过滤器据此判断同步之后是否有其他推送完成
+        public static final String COUPON_TEMPLATE_PUSHED = "coupon_template_code_pushed";
+
+        // 分发节点预取的优惠券码 key 前缀(hash: 优惠券码 -> 模板 id), 每个节点一个, 节点异常退出后由其他节点放回码池
+        public static final String COUPON_TEMPLATE_INFLIGHT = "coupon_template_code_inflight_";
+
+        // 预取优惠券码的分发节点(hash: 节点 id -> 最近一次心跳的时间戳)
+        public static final String COUPON_TEMPLATE_NODES = "coupon_template_code_nodes";
+
+        // 可用优惠券模板的版本号, 模板变更时自增
+        public static final String COUPON_TEMPLATE_VERSION = "coupon_template_version";
+
+        // 模板变更记录(zset: 模板 id -> 最后一次变更的版本号)
+        public static final String COUPON_TEMPLATE_CHANGES = "coupon_template_changes";
+
+        // 模板变更记录的下界, 早于该版本号的变更可能已被删除
+        public static final String COUPON_TEMPLATE_CHANGES_FLOOR = "coupon_template_changes_floor";
+
         // 用户当前所有可用的优惠券 key 前缀
         public static final String USER_COUPON_USABLE = "user_coupon_usable_";
 
@@ -22,5 +68,27 @@ public class Constant {
 
         // 用户当前所有已过期的优惠券 key 前缀
         public static final String USER_COUPON_EXPIRED = "user_coupon_expired_";
+
+        // 用户可用优惠券缓存的新鲜标记 key 前缀, 标记过期(软过期)之后缓存仍然可用, 同时在后台刷新
+        public static final String USER_COUPON_USABLE_FRESH = "user_coupon_usable_fresh_";
+
+        // 用户可用优惠券缓存的待同步标记 key 前缀, 缓存先于数据库变化(领取、核销、过期)之后的一段时间内存在,
+        // 值是每次变化时递增的版本, 标记存在时数据库中的记录可能落后于缓存, 不能用来刷新缓存
+        public static final String USER_COUPON_MOVE_PENDING = "user_coupon_move_pending_";
+
+        // 已知没有优惠券的标记 key 前缀, 每个状态和用户一个(user_coupon_empty_<status>_<userId>), 与无效优惠券的缓存同时过期
+        public static final String USER_COUPON_EMPTY = "user_coupon_empty_";
+
+        // 用户已领取的可用优惠券计数 key 前缀(hash: 模板 id -> 个数)
+        public static final String USER_COUPON_CLAIM = "user_coupon_claim_";
+
+        // 用户优惠券缓存加载租约 key 前缀, 同一个用户和状态同时只有一个节点从数据库加载
+        public static final String USER_COUPON_LOAD_LEASE = "user_coupon_load_lease_";
+
+        // 优惠券 id 序列, 领取时在 Redis 中分配 id
+        public static final String COUPON_ID_SEQUENCE = "coupon_id_sequence";
+
+        // 用户优惠券缓存失效通知的频道, 消息为 userId:status,status
+        public static final String USER_COUPON_INVALIDATE_CHANNEL = "user_coupon_invalidate";
     }
 }
@@ -0,0 +1,28 @@
+package com.zkw.coupon.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 优惠券模板增量变更信息定义
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TemplateChanges {
+
+    // 变更之后的模板版本号, 调用方下次同步时作为起始版本号
+    private Long version;
+
+    // 是否为全量数据, 全量时调用方需要用 upserts 替换本地的所有模板
+    private Boolean full;
+
+    // 新增或修改的可用模板
+    private List<CouponTemplateSDK> upserts;
+
+    // 变为不可用(过期)的模板 id
+    private List<Integer> removedIds;
+}
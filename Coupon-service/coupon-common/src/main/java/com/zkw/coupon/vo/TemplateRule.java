@@ -38,6 +38,27 @@ public class TemplateRule {
                 && StringUtils.isNotEmpty(weight);
     }
 
+    /**
+     * 只读视图, 可以被多个模板共享, 修改时抛出 UnsupportedOperationException; 需要修改时先 copy()
+     */
+    public TemplateRule readOnly() {
+        return this instanceof ReadOnlyTemplateRule ? this : new ReadOnlyTemplateRule(this);
+    }
+
+    /**
+     * 深拷贝, 得到可以修改的规则
+     */
+    public TemplateRule copy() {
+        return new TemplateRule(
+                null == expiration ? null : new Expiration(
+                        expiration.getPeriod(), expiration.getGap(), expiration.getDeadline()),
+                null == discount ? null : new Discount(discount.getQuota(), discount.getBase()),
+                limitation,
+                null == usage ? null : new Usage(usage.getProvince(), usage.getCity(), usage.getGoodsType()),
+                weight
+        );
+    }
+
     /**
      * 有效期限规则内部类
      */
@@ -103,4 +124,110 @@ public class TemplateRule {
                     && StringUtils.isNotEmpty(goodsType);
         }
     }
+
+    /**
+     * 只读的规则, 所有 setter 都会抛出异常
+     */
+    private static class ReadOnlyTemplateRule extends TemplateRule {
+
+        ReadOnlyTemplateRule(TemplateRule rule) {
+            super(
+                    null == rule.getExpiration() ? null : new ReadOnlyExpiration(rule.getExpiration()),
+                    null == rule.getDiscount() ? null : new ReadOnlyDiscount(rule.getDiscount()),
+                    rule.getLimitation(),
+                    null == rule.getUsage() ? null : new ReadOnlyUsage(rule.getUsage()),
+                    rule.getWeight()
+            );
+        }
+
+        @Override
+        public void setExpiration(Expiration expiration) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setDiscount(Discount discount) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setLimitation(Integer limitation) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setUsage(Usage usage) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setWeight(String weight) {
+            throw unsupported();
+        }
+    }
+
+    private static class ReadOnlyExpiration extends Expiration {
+
+        ReadOnlyExpiration(Expiration expiration) {
+            super(expiration.getPeriod(), expiration.getGap(), expiration.getDeadline());
+        }
+
+        @Override
+        public void setPeriod(Integer period) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setGap(Integer gap) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setDeadline(Long deadline) {
+            throw unsupported();
+        }
+    }
+
+    private static class ReadOnlyDiscount extends Discount {
+
+        ReadOnlyDiscount(Discount discount) {
+            super(discount.getQuota(), discount.getBase());
+        }
+
+        @Override
+        public void setQuota(Integer quota) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setBase(Integer base) {
+            throw unsupported();
+        }
+    }
+
+    private static class ReadOnlyUsage extends Usage {
+
+        ReadOnlyUsage(Usage usage) {
+            super(usage.getProvince(), usage.getCity(), usage.getGoodsType());
+        }
+
+        @Override
+        public void setProvince(String province) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setCity(String city) {
+            throw unsupported();
+        }
+
+        @Override
+        public void setGoodsType(String goodsType) {
+            throw unsupported();
+        }
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("TemplateRule is shared and read only, copy() before modify");
+    }
 }
@@ -0,0 +1,124 @@
+package com.zkw.coupon.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用户可用优惠券缓存的后台刷新(stale-while-revalidate)
+ * 可用优惠券缓存有两个过期时间: 新鲜标记的过期时间(软过期)和缓存本身的过期时间(硬过期, 软过期之后再保留一段时间);
+ * 软过期之后的缓存仍然直接返回, 同时只有一个节点(通过新鲜标记上的租约)在后台重新加载, 硬过期只用来限制数据的陈旧程度;
+ * 重新加载的结果整体替换缓存, 缓存先于数据库变化(待同步标记存在)时放弃替换
+ */
+@Slf4j
+@Component
+public class CouponCacheRefresher {
+
+    // userId_status -> 本节点拿到了刷新租约, 等待提交刷新
+    private final Cache<String, Boolean> stale;
+
+    // 执行刷新的线程池, 队列满时放弃刷新, 租约过期之后会再次触发
+    private final ThreadPoolExecutor executor;
+
+    // 是否开启
+    private final boolean enabled;
+
+    // 软过期之后缓存继续保留的时间(秒)
+    private final long staleSeconds;
+
+    // 刷新租约的有效期(秒)
+    private final long leaseSeconds;
+
+    // 缓存先于数据库变化之后待同步标记的有效期(秒)
+    private final long pendingSeconds;
+
+    public CouponCacheRefresher(@Value("${coupon.cache.stale-while-revalidate.enabled:true}") boolean enabled,
+                                @Value("${coupon.cache.stale-while-revalidate.stale-seconds:3600}") long staleSeconds,
+                                @Value("${coupon.cache.stale-while-revalidate.lease-seconds:30}") long leaseSeconds,
+                                @Value("${coupon.cache.stale-while-revalidate.pending-seconds:60}") long pendingSeconds,
+                                @Value("${coupon.cache.stale-while-revalidate.threads:2}") int threads,
+                                @Value("${coupon.cache.stale-while-revalidate.queue-capacity:1000}") int queueCapacity) {
+        this.enabled = enabled;
+        this.staleSeconds = staleSeconds;
+        this.leaseSeconds = leaseSeconds;
+        this.pendingSeconds = pendingSeconds;
+        this.stale = CacheBuilder.newBuilder()
+                .expireAfterWrite(leaseSeconds, TimeUnit.SECONDS)
+                .build();
+        this.executor = new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueCapacity),
+                new CustomizableThreadFactory("CouponCacheRefresh_")
+        );
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 缓存的硬过期时间(秒)
+     * @param softSeconds 软过期时间(秒)
+     */
+    public long hardSeconds(long softSeconds) {
+        return enabled ? softSeconds + staleSeconds : softSeconds;
+    }
+
+    public long getLeaseSeconds() {
+        return leaseSeconds;
+    }
+
+    public long getPendingSeconds() {
+        return pendingSeconds;
+    }
+
+    /**
+     * 读取缓存时发现已经软过期, 并且拿到了刷新租约
+     */
+    public void markStale(Long userId, Integer status) {
+        stale.put(key(userId, status), Boolean.TRUE);
+    }
+
+    /**
+     * 如果缓存已经被标记为软过期, 在后台执行一次加载
+     * @param loader 从数据库加载并写入缓存
+     */
+    public void refreshIfStale(Long userId, Integer status, CouponLoadSingleFlight.Loader loader) {
+
+        String key = key(userId, status);
+        if (null == stale.asMap().remove(key)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    loader.load();
+                    log.debug("Refresh coupon cache: {}", key);
+                } catch (Exception ex) {
+                    log.error("Refresh coupon cache error: {}, {}", key, ex.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            log.warn("Too many coupon cache refreshes, skip: {}", key);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    private String key(Long userId, Integer status) {
+        return userId + "_" + status;
+    }
+}
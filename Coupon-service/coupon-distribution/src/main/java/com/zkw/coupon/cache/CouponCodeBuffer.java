@@ -0,0 +1,399 @@
+package com.zkw.coupon.cache;
+
+import com.zkw.coupon.constant.Constant;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分发节点本地的优惠券码预取缓冲
+ * 热门模板的优惠券码批量从码池取到本地的无锁队列, 领取时直接使用, 不再访问码池所在的热点 key;
+ * 预取的码同时记录在节点的预取 hash 中, 正常关闭或者长时间空闲时放回码池, 节点异常退出后由其他节点放回;
+ * 领取时只有从预取 hash 中删除成功的码才会被使用, 被其他节点误判为异常退出而放回的码不会被重复发放
+ * 心跳使用单独的线程, 不会被共享调度线程上的其他定时任务拖慢
+ * 同时负责解析码池的各个分片, 预取和领取每次只访问一个分片(以及节点的预取 hash, 与码池位于同一个 Redis 节点)
+ */
+@Slf4j
+@Component
+public class CouponCodeBuffer {
+
+    // 批量取出优惠券码的脚本
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> PREFETCH_SCRIPT = new DefaultRedisScript<>();
+
+    // 放回优惠券码的脚本
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        PREFETCH_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/prefetch_coupon_code.lua")
+        ));
+        PREFETCH_SCRIPT.setResultType(List.class);
+        RETURN_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/return_coupon_code.lua")
+        ));
+        RETURN_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate redisTemplate;
+
+    // 模板 id -> 码池的各个分片, 码池构建之后不会改变
+    private final Map<Integer, List<CouponCodePool>> codePools = new ConcurrentHashMap<>();
+
+    // 模板 id -> 本地缓冲
+    private final Map<Integer, TemplateBuffer> buffers = new ConcurrentHashMap<>();
+
+    // 当前节点 id
+    private final String nodeId;
+
+    // 默认每次预取的个数, 0 代表不预取
+    private final int batchSize;
+
+    // 单独配置的模板每次预取的个数
+    private final Map<Integer, Integer> templateBatchSizes;
+
+    // 缓冲空闲多久之后放回码池(毫秒)
+    private final long idleMillis;
+
+    // 节点多久没有心跳之后视为异常退出(毫秒)
+    private final long nodeTimeoutMillis;
+
+    // 心跳间隔(毫秒)
+    private final long heartbeatMillis;
+
+    // 心跳线程
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+            new CustomizableThreadFactory("CouponCodeHeartbeat_")
+    );
+
+    public CouponCodeBuffer(StringRedisTemplate redisTemplate,
+                            @Value("${coupon.code.prefetch.node-id:}") String nodeId,
+                            @Value("${server.port:7002}") int port,
+                            @Value("${coupon.code.prefetch.batch-size:0}") int batchSize,
+                            @Value("#{${coupon.code.prefetch.template-batch-size:{:}}}") Map<Integer, Integer> templateBatchSizes,
+                            @Value("${coupon.code.prefetch.idle-seconds:60}") long idleSeconds,
+                            @Value("${coupon.code.prefetch.node-timeout-seconds:30}") long nodeTimeoutSeconds,
+                            @Value("${coupon.code.prefetch.heartbeat-interval:5000}") long heartbeatMillis) {
+        this.redisTemplate = redisTemplate;
+        this.nodeId = nodeId.isEmpty() ? defaultNodeId(port) : nodeId;
+        this.batchSize = batchSize;
+        this.templateBatchSizes = templateBatchSizes;
+        this.idleMillis = idleSeconds * 1000;
+        this.nodeTimeoutMillis = nodeTimeoutSeconds * 1000;
+        this.heartbeatMillis = heartbeatMillis;
+        if (nodeTimeoutMillis < heartbeatMillis * 3) {
+            log.warn("Coupon code node timeout {}ms is too close to heartbeat interval {}ms",
+                    nodeTimeoutMillis, heartbeatMillis);
+        }
+    }
+
+    /**
+     * 启动完成之后登记节点, 并放回上次异常退出时留下的优惠券码
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+
+        heartbeat();
+        heartbeatExecutor.scheduleAtFixedRate(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        returnInflight(nodeId);
+    }
+
+    /**
+     * 正常关闭时放回本地缓冲中所有的优惠券码
+     */
+    @PreDestroy
+    public void stop() {
+
+        heartbeatExecutor.shutdownNow();
+        buffers.keySet().forEach(this::evict);
+        if (0 == returnInflight(nodeId)) {
+            redisTemplate.opsForHash().delete(Constant.RedisPrefix.COUPON_TEMPLATE_NODES, nodeId);
+        }
+    }
+
+    /**
+     * 定时放回空闲缓冲中的优惠券码, 以及异常退出的节点预取的优惠券码
+     */
+    @Scheduled(fixedDelayString = "${coupon.code.prefetch.check-interval:5000}")
+    public void maintain() {
+
+        try {
+            long now = System.currentTimeMillis();
+            buffers.forEach((templateId, buffer) -> {
+                if (now - buffer.lastAccess > idleMillis) {
+                    evict(templateId);
+                }
+            });
+
+            Map<Object, Object> nodes = redisTemplate.opsForHash().entries(Constant.RedisPrefix.COUPON_TEMPLATE_NODES);
+            nodes.forEach((node, lastBeat) -> {
+                if (!nodeId.equals(node) && now - Long.parseLong(lastBeat.toString()) > nodeTimeoutMillis) {
+                    log.warn("Coupon code node is down, return its codes: {}", node);
+                    if (0 == returnInflight(node.toString())) {
+                        redisTemplate.opsForHash().delete(Constant.RedisPrefix.COUPON_TEMPLATE_NODES, node);
+                    }
+                }
+            });
+        } catch (Exception ex) {
+            log.error("Maintain coupon code buffer error: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * 当前节点的预取 hash key
+     */
+    public String inflightKey() {
+        return inflightKey(nodeId);
+    }
+
+    /**
+     * 从本地缓冲中取出一个优惠券码, 缓冲为空时先从码池批量预取
+     * @param templateId 优惠券模板 id
+     * @return 优惠券码, 模板没有开启预取或者码池为空时返回 null
+     */
+    public String take(Integer templateId) {
+
+        int batch = templateBatchSizes.getOrDefault(templateId, batchSize);
+        if (batch <= 0) {
+            return null;
+        }
+
+        TemplateBuffer buffer = buffers.computeIfAbsent(templateId, id -> new TemplateBuffer());
+        buffer.lastAccess = System.currentTimeMillis();
+        String code = buffer.codes.poll();
+        if (null != code) {
+            return code;
+        }
+
+        synchronized (buffer) {
+            code = buffer.codes.poll();
+            if (null != code || buffer.closed) {
+                return code;
+            }
+
+            List<String> codes = prefetch(templateId, batch);
+            if (codes.isEmpty()) {
+                return null;
+            }
+            buffer.codes.addAll(codes.subList(1, codes.size()));
+            return codes.get(0);
+        }
+    }
+
+    /**
+     * 取出的优惠券码没有被使用(例如超过领取上限), 放回本地缓冲
+     */
+    public void putBack(Integer templateId, String code) {
+
+        TemplateBuffer buffer = buffers.get(templateId);
+        if (null != buffer) {
+            synchronized (buffer) {
+                if (!buffer.closed) {
+                    buffer.codes.offer(code);
+                    return;
+                }
+            }
+        }
+        returnCodes(nodeId, templateId, Collections.singletonList(code));
+    }
+
+    /**
+     * 把优惠券码直接放回码池, 只有仍然记录在预取 hash 中(没有被领取)时才会放回
+     * 用于不确定优惠券码是否已经被使用的情况
+     */
+    public void release(Integer templateId, String code) {
+        returnCodes(nodeId, templateId, Collections.singletonList(code));
+    }
+
+    /**
+     * 码池的各个分片, 只有一个分片时沿用 coupon_template_code_1 和模板的元信息 coupon_template_code_meta_1,
+     * 否则第 n 个分片为 coupon_template_code_{1_n} 和 coupon_template_code_meta_{1_n}
+     * 分片数和存储格式记录在码池元信息中, 读取一次之后缓存在本地
+     */
+    public List<CouponCodePool> pools(Integer templateId) {
+
+        List<CouponCodePool> pools = codePools.get(templateId);
+        if (null != pools) {
+            return pools;
+        }
+
+        List<Object> values = redisTemplate.opsForHash().multiGet(
+                metaKey(templateId), Arrays.asList("shards", "total", "format")
+        );
+        // 分片之前构建的码池没有记录分片数, 只有一个分片
+        int shards = null == values.get(0) ? 1 : Integer.parseInt(values.get(0).toString());
+
+        if (shards <= 1) {
+            boolean binary = "binary".equals(values.get(2));
+            String listKey = String.format("%s%s", Constant.RedisPrefix.COUPON_TEMPLATE, templateId);
+            pools = Collections.singletonList(new CouponCodePool(
+                    listKey,
+                    metaKey(templateId),
+                    binary ? String.format("%s%s", Constant.RedisPrefix.COUPON_TEMPLATE_BIN, templateId) : listKey,
+                    binary
+            ));
+        } else {
+            pools = new ArrayList<>(shards);
+            for (int shard = 0; shard != shards; ++shard) {
+                String listKey = String.format("%s{%s_%s}", Constant.RedisPrefix.COUPON_TEMPLATE, templateId, shard);
+                pools.add(new CouponCodePool(
+                        listKey,
+                        String.format("%s{%s_%s}", Constant.RedisPrefix.COUPON_TEMPLATE_META, templateId, shard),
+                        listKey,
+                        false
+                ));
+            }
+        }
+
+        // 码池还没有构建时不缓存
+        if (null != values.get(1)) {
+            codePools.put(templateId, pools);
+        }
+        return pools;
+    }
+
+    /**
+     * 从码池批量取出优惠券码, 从随机的分片开始, 个数不足时继续尝试后面的分片
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> prefetch(Integer templateId, int batch) {
+
+        List<CouponCodePool> pools = pools(templateId);
+        int start = ThreadLocalRandom.current().nextInt(pools.size());
+        List<String> codes = new ArrayList<>(batch);
+
+        for (int i = 0; i != pools.size() && codes.size() < batch; ++i) {
+            CouponCodePool pool = pools.get((start + i) % pools.size());
+            List<String> fetched = redisTemplate.execute(
+                    PREFETCH_SCRIPT,
+                    Arrays.asList(pool.getListKey(), pool.getMetaKey(), pool.getBinKey(), inflightKey()),
+                    String.valueOf(batch - codes.size()),
+                    pool.isBinary() ? "1" : "0",
+                    templateId.toString()
+            );
+            if (null != fetched) {
+                codes.addAll(fetched);
+            }
+        }
+        log.debug("Prefetch coupon codes: {}, {}", templateId, codes.size());
+
+        return codes;
+    }
+
+    /**
+     * 关闭模板的本地缓冲, 剩余的优惠券码放回码池
+     */
+    private void evict(Integer templateId) {
+
+        TemplateBuffer buffer = buffers.remove(templateId);
+        if (null == buffer) {
+            return;
+        }
+
+        List<String> codes = new ArrayList<>();
+        synchronized (buffer) {
+            buffer.closed = true;
+            for (String code = buffer.codes.poll(); null != code; code = buffer.codes.poll()) {
+                codes.add(code);
+            }
+        }
+        if (!codes.isEmpty()) {
+            log.info("Return buffered coupon codes: {}, {}", templateId, codes.size());
+            returnCodes(nodeId, templateId, codes);
+        }
+    }
+
+    /**
+     * 放回节点预取 hash 中记录的所有优惠券码
+     * @return 放回之后预取 hash 中剩余的个数
+     */
+    private long returnInflight(String node) {
+
+        Map<Object, Object> inflight = redisTemplate.opsForHash().entries(inflightKey(node));
+        Map<Integer, List<String>> templateId2Codes = new HashMap<>();
+        inflight.forEach((code, templateId) -> templateId2Codes
+                .computeIfAbsent(Integer.valueOf(templateId.toString()), id -> new ArrayList<>())
+                .add(code.toString()));
+
+        templateId2Codes.forEach((templateId, codes) -> {
+            log.info("Return inflight coupon codes: {}, {}, {}", node, templateId, codes.size());
+            returnCodes(node, templateId, codes);
+        });
+
+        Long remaining = redisTemplate.opsForHash().size(inflightKey(node));
+        return null == remaining ? 0 : remaining;
+    }
+
+    private void returnCodes(String node, Integer templateId, List<String> codes) {
+
+        if (CollectionUtils.isEmpty(codes)) {
+            return;
+        }
+
+        List<CouponCodePool> pools = pools(templateId);
+        CouponCodePool pool = pools.get(ThreadLocalRandom.current().nextInt(pools.size()));
+        redisTemplate.execute(
+                RETURN_SCRIPT,
+                Arrays.asList(inflightKey(node), pool.getListKey()),
+                codes.toArray()
+        );
+    }
+
+    private void heartbeat() {
+
+        try {
+            redisTemplate.opsForHash().put(
+                    Constant.RedisPrefix.COUPON_TEMPLATE_NODES, nodeId, String.valueOf(System.currentTimeMillis())
+            );
+        } catch (Exception ex) {
+            log.error("Coupon code node heartbeat error: {}", ex.getMessage());
+        }
+    }
+
+    private String inflightKey(String node) {
+        return String.format("%s%s", Constant.RedisPrefix.COUPON_TEMPLATE_INFLIGHT, node);
+    }
+
+    private String metaKey(Integer templateId) {
+        return String.format("%s%s", Constant.RedisPrefix.COUPON_TEMPLATE_META, templateId);
+    }
+
+    private static String defaultNodeId(int port) {
+
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + port;
+        } catch (UnknownHostException ex) {
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    /**
+     * 一个模板的本地缓冲
+     */
+    private static class TemplateBuffer {
+
+        private final Queue<String> codes = new ConcurrentLinkedQueue<>();
+        private volatile long lastAccess = System.currentTimeMillis();
+        private volatile boolean closed;
+    }
+}
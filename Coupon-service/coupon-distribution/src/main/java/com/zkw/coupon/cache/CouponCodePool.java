@@ -0,0 +1,27 @@
+package com.zkw.coupon.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 码池的一个分片, 领取时每次只访问一个分片
+ * 分片的码池每个分片有自己的列表和元信息(发放计数), 热门模板的 LPOP 和计数分散到几个 key 上, 单个列表不再是唯一的热点;
+ * 领取脚本同时访问用户缓存、id 序列等其他 key, 所有分片仍然需要和它们位于同一个 Redis 节点, 分片不能把负载分散到 Redis Cluster 的多个节点;
+ * 没有分片的码池沿用原来的 key, 列表(或二进制串)与模板的元信息一起使用
+ */
+@Getter
+@AllArgsConstructor
+public class CouponCodePool {
+
+    // 优惠券码列表 key
+    private final String listKey;
+
+    // 元信息 key, 记录发放计数, 二进制格式时还记录读取偏移量
+    private final String metaKey;
+
+    // 二进制优惠券码 key, 不是二进制格式时与列表 key 相同
+    private final String binKey;
+
+    // 是否二进制格式
+    private final boolean binary;
+}
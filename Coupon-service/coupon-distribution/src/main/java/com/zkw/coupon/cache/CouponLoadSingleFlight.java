@@ -0,0 +1,152 @@
+package com.zkw.coupon.cache;
+
+import com.zkw.coupon.constant.Constant;
+import com.zkw.coupon.entity.Coupon;
+import com.zkw.coupon.exception.CouponException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 用户优惠券缓存未命中时的合并加载(single-flight)
+ * 同一个 JVM 内, 同一个用户和状态只有一个线程执行加载, 其他线程等待它的结果;
+ * 开启跨节点合并时, 加载之前先在 Redis 中获取一个短期租约, 没有拿到租约的节点轮询缓存,
+ * 直到持有者写入缓存, 租约过期之后自己加载
+ */
+@Slf4j
+@Component
+public class CouponLoadSingleFlight {
+
+    private final StringRedisTemplate redisTemplate;
+
+    // userId_status -> 正在进行的加载
+    private final ConcurrentHashMap<String, CompletableFuture<List<Coupon>>> flights = new ConcurrentHashMap<>();
+
+    // 是否开启跨节点合并
+    private final boolean distributed;
+
+    // Redis 租约的有效期(毫秒), 也是其他节点等待的最长时间
+    private final long leaseMillis;
+
+    // 其他节点轮询缓存的间隔(毫秒)
+    private final long pollMillis;
+
+    public CouponLoadSingleFlight(StringRedisTemplate redisTemplate,
+                                  @Value("${coupon.cache.single-flight.distributed:true}") boolean distributed,
+                                  @Value("${coupon.cache.single-flight.lease-millis:3000}") long leaseMillis,
+                                  @Value("${coupon.cache.single-flight.poll-millis:20}") long pollMillis) {
+        this.redisTemplate = redisTemplate;
+        this.distributed = distributed;
+        this.leaseMillis = leaseMillis;
+        this.pollMillis = pollMillis;
+    }
+
+    /**
+     * 合并加载用户的优惠券
+     * @param userId 用户 id
+     * @param status 优惠券状态
+     * @param loader 从数据库加载并写入缓存, 返回加载到的优惠券
+     * @param cached 读取缓存, 缓存还没有写入时返回空列表
+     * @return 加载到的优惠券, 调用方之间共享, 不能修改
+     */
+    public List<Coupon> load(Long userId, Integer status, Loader loader,
+                             Supplier<List<Coupon>> cached) throws CouponException {
+
+        String key = userId + "_" + status;
+        CompletableFuture<List<Coupon>> flight = new CompletableFuture<>();
+        CompletableFuture<List<Coupon>> existing = flights.putIfAbsent(key, flight);
+
+        if (null != existing) {
+            log.debug("Join coupon loading: {}", key);
+            return await(existing);
+        }
+
+        try {
+            List<Coupon> coupons = distributed ? loadWithLease(key, loader, cached) : loader.load();
+            flight.complete(coupons);
+            return coupons;
+        } catch (CouponException | RuntimeException ex) {
+            flight.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * 拿到租约的节点执行加载; 其他节点等待持有者写入缓存, 超时后自己加载
+     */
+    private List<Coupon> loadWithLease(String key, Loader loader,
+                                       Supplier<List<Coupon>> cached) throws CouponException {
+
+        String leaseKey = String.format("%s%s", Constant.RedisPrefix.USER_COUPON_LOAD_LEASE, key);
+        String token = UUID.randomUUID().toString();
+        Boolean leased = redisTemplate.opsForValue().setIfAbsent(leaseKey, token, leaseMillis, TimeUnit.MILLISECONDS);
+
+        if (Boolean.TRUE.equals(leased)) {
+            try {
+                return loader.load();
+            } finally {
+                // 只释放自己的租约, 加载超过有效期时租约可能已经属于其他节点
+                if (token.equals(redisTemplate.opsForValue().get(leaseKey))) {
+                    redisTemplate.delete(leaseKey);
+                }
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + leaseMillis;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            List<Coupon> coupons = cached.get();
+            if (CollectionUtils.isNotEmpty(coupons)) {
+                log.debug("Coupon loaded by other node: {}", key);
+                return coupons;
+            }
+        }
+
+        log.warn("Wait for coupon loading timeout, load by self: {}", key);
+        return loader.load();
+    }
+
+    private List<Coupon> await(CompletableFuture<List<Coupon>> flight) throws CouponException {
+
+        try {
+            return flight.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CouponException("Interrupted while waiting for coupon loading");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof CouponException) {
+                throw (CouponException) ex.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new CouponException(ex.getCause().getMessage());
+        }
+    }
+
+    /**
+     * 从数据库加载优惠券并写入缓存
+     */
+    @FunctionalInterface
+    public interface Loader {
+
+        List<Coupon> load() throws CouponException;
+    }
+}
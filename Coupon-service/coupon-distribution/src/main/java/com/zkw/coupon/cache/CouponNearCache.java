@@ -0,0 +1,269 @@
+package com.zkw.coupon.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zkw.coupon.constant.Constant;
+import com.zkw.coupon.constant.CouponStatus;
+import com.zkw.coupon.entity.Coupon;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * 用户优惠券的进程内缓存(近端缓存), 位于 Redis 之前
+ * 用户的优惠券缓存发生变化时, 先失效本地缓存, 再通过 Redis 频道通知其他实例失效;
+ * 写入时校验用户的失效代数, 读取 Redis 期间该用户发生过失效的结果不会被写入, 避免旧数据覆盖失效;
+ * 失效代数按用户记录, 其他用户的失效不会影响写入
+ * 缓存的优惠券被多个请求共享, 读取到的优惠券不能被修改
+ * 同时缓存用户每个模板已领取的可用优惠券个数, 随可用优惠券一起失效, 并且不会晚于 Redis 中的计数过期
+ * 没有优惠券的用户和状态单独记录为"已知为空", 每个用户只占一个按位记录状态的整数;
+ * 其他实例写入优惠券时失效通知可能丢失, 已知为空的记录只保留几秒
+ */
+@Slf4j
+@Component
+public class CouponNearCache implements MessageListener {
+
+    // userId_status -> 优惠券列表
+    private final Cache<String, List<Coupon>> cache;
+
+    // userId -> 已领取的可用优惠券个数及其过期时间
+    private final Cache<Long, ClaimCounts> claims;
+
+    // userId -> 已知没有优惠券的状态(按位: 1 << status)
+    private final Cache<Long, Integer> empties;
+
+    // userId -> 失效代数, 取自全局递增的序号, 每次失效时更新
+    private final Cache<Long, Long> generations;
+
+    // 失效代数的序号
+    private final AtomicLong sequence = new AtomicLong();
+
+    // 被淘汰的失效代数中的最大值, 作为没有记录的用户的失效代数, 保证淘汰之后不会与读取时的代数误判相等
+    private final AtomicLong evicted = new AtomicLong();
+
+    private final StringRedisTemplate redisTemplate;
+
+    // 是否开启近端缓存
+    private final boolean enabled;
+
+    public CouponNearCache(StringRedisTemplate redisTemplate,
+                           @Value("${coupon.near-cache.enabled:true}") boolean enabled,
+                           @Value("${coupon.near-cache.maximum-size:100000}") long maximumSize,
+                           @Value("${coupon.near-cache.expire-seconds:30}") long expireSeconds,
+                           @Value("${coupon.near-cache.empty-maximum-size:1000000}") long emptyMaximumSize,
+                           @Value("${coupon.near-cache.empty-expire-seconds:10}") long emptyExpireSeconds) {
+        this.redisTemplate = redisTemplate;
+        this.enabled = enabled;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .build();
+        this.claims = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .build();
+        this.empties = CacheBuilder.newBuilder()
+                .maximumSize(emptyMaximumSize)
+                .expireAfterWrite(emptyExpireSeconds, TimeUnit.SECONDS)
+                .build();
+        this.generations = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Math.max(expireSeconds, emptyExpireSeconds), TimeUnit.SECONDS)
+                .<Long, Long>removalListener(notification -> {
+                    if (notification.wasEvicted()) {
+                        evicted.accumulateAndGet(notification.getValue(), Math::max);
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * 用户当前的失效代数, 在读取 Redis 之前获取, 写入时传回
+     */
+    public long generation(Long userId) {
+
+        Long current = generations.getIfPresent(userId);
+        return null == current ? evicted.get() : current;
+    }
+
+    /**
+     * 获取缓存的优惠券列表, 不存在时返回 null
+     */
+    public List<Coupon> get(Long userId, Integer status) {
+        return enabled ? cache.getIfPresent(key(userId, status)) : null;
+    }
+
+    /**
+     * 写入优惠券列表, 读取之后发生过失效时放弃写入
+     */
+    public void put(Long userId, Integer status, List<Coupon> coupons, long expectedGeneration) {
+
+        if (!enabled) {
+            return;
+        }
+
+        String key = key(userId, status);
+        cache.put(key, Collections.unmodifiableList(coupons));
+        if (generation(userId) != expectedGeneration) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * 用户在该状态下是否已知没有优惠券
+     */
+    public boolean isKnownEmpty(Long userId, Integer status) {
+
+        if (!enabled) {
+            return false;
+        }
+
+        Integer bits = empties.getIfPresent(userId);
+        return null != bits && (bits & bit(status)) != 0;
+    }
+
+    /**
+     * 记录用户在该状态下没有优惠券, 读取之后发生过失效时放弃写入
+     */
+    public void putEmpty(Long userId, Integer status, long expectedGeneration) {
+
+        if (!enabled) {
+            return;
+        }
+
+        empties.asMap().merge(userId, bit(status), (a, b) -> a | b);
+        if (generation(userId) != expectedGeneration) {
+            empties.invalidate(userId);
+        }
+    }
+
+    /**
+     * 获取用户每个模板已领取的可用优惠券个数, 不存在时返回 null
+     */
+    public Map<Integer, Integer> getClaims(Long userId) {
+
+        if (!enabled) {
+            return null;
+        }
+
+        ClaimCounts cached = claims.getIfPresent(userId);
+        if (null == cached) {
+            return null;
+        }
+        if (cached.expireAt <= System.currentTimeMillis()) {
+            claims.asMap().remove(userId, cached);
+            return null;
+        }
+        return cached.counts;
+    }
+
+    /**
+     * 写入用户每个模板已领取的可用优惠券个数, 读取之后发生过失效时放弃写入
+     * @param ttlMillis Redis 中计数剩余的有效期(毫秒), 小于 0 表示不过期
+     */
+    public void putClaims(Long userId, Map<Integer, Integer> counts, long ttlMillis, long expectedGeneration) {
+
+        if (!enabled || 0 == ttlMillis) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long expireAt = ttlMillis < 0 ? Long.MAX_VALUE : now + ttlMillis;
+        claims.put(userId, new ClaimCounts(Collections.unmodifiableMap(counts), expireAt));
+        if (generation(userId) != expectedGeneration) {
+            claims.invalidate(userId);
+        }
+    }
+
+    /**
+     * 只失效本地的可用优惠券和领取计数, 领取时发现 Redis 中的缓存或计数不存在, 说明本地的副本已经过时
+     */
+    public void invalidateUsableLocal(Long userId) {
+
+        if (!enabled) {
+            return;
+        }
+
+        invalidateLocal(userId, Collections.singletonList(CouponStatus.USABLE.getCode()));
+    }
+
+    /**
+     * 失效本地缓存, 并通知其他实例失效
+     */
+    public void invalidate(Long userId, Collection<Integer> status) {
+
+        if (!enabled) {
+            return;
+        }
+
+        invalidateLocal(userId, status);
+        redisTemplate.convertAndSend(
+                Constant.RedisPrefix.USER_COUPON_INVALIDATE_CHANNEL,
+                userId + ":" + status.stream().map(Object::toString).collect(Collectors.joining(","))
+        );
+    }
+
+    /**
+     * 收到其他实例(或自己)的失效通知
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            String[] parts = body.split(":");
+            Long userId = Long.valueOf(parts[0]);
+            for (String status : parts[1].split(",")) {
+                invalidateLocal(userId, Collections.singletonList(Integer.valueOf(status)));
+            }
+        } catch (RuntimeException ex) {
+            log.error("Illegal coupon cache invalidate message: {}", body);
+        }
+    }
+
+    private void invalidateLocal(Long userId, Collection<Integer> status) {
+
+        generations.put(userId, sequence.incrementAndGet());
+        status.forEach(s -> cache.invalidate(key(userId, s)));
+        int mask = status.stream().mapToInt(this::bit).reduce(0, (a, b) -> a | b);
+        empties.asMap().computeIfPresent(userId, (k, bits) -> (bits & ~mask) == 0 ? null : bits & ~mask);
+        if (status.contains(CouponStatus.USABLE.getCode())) {
+            claims.invalidate(userId);
+        }
+    }
+
+    /**
+     * 领取计数及其过期时间
+     */
+    private static class ClaimCounts {
+
+        private final Map<Integer, Integer> counts;
+
+        private final long expireAt;
+
+        ClaimCounts(Map<Integer, Integer> counts, long expireAt) {
+            this.counts = counts;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private int bit(Integer status) {
+        return 1 << status;
+    }
+
+    private String key(Long userId, Integer status) {
+        return userId + "_" + status;
+    }
+}
@@ -0,0 +1,144 @@
+package com.zkw.coupon.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zkw.coupon.feign.TemplateClient;
+import com.zkw.coupon.vo.CommonResponse;
+import com.zkw.coupon.vo.CouponTemplateSDK;
+import com.zkw.coupon.vo.TemplateChanges;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可用优惠券模板的本地副本
+ * 启动完成之后全量加载, 之后定时按版本号拉取增量; 副本是不可变的 Map, 更新时整体替换, 读取不加锁
+ * 副本中没有的模板(例如已过期的模板)才通过 Feign 查询, 查询结果短暂缓存
+ */
+@Slf4j
+@Component
+public class TemplateReplica {
+
+    // 模板微服务客户端
+    private final TemplateClient templateClient;
+
+    // 副本中没有的模板的查询结果
+    private final Cache<Integer, CouponTemplateSDK> fallback;
+
+    // 模板 id -> 可用模板
+    private volatile Map<Integer, CouponTemplateSDK> templates = Collections.emptyMap();
+
+    // 已经同步到的版本号, 0 代表还没有加载
+    private volatile long version = 0;
+
+    public TemplateReplica(TemplateClient templateClient,
+                           @Value("${coupon.template.replica.fallback-size:10000}") long fallbackSize,
+                           @Value("${coupon.template.replica.fallback-expire-seconds:300}") long fallbackExpireSeconds) {
+        this.templateClient = templateClient;
+        this.fallback = CacheBuilder.newBuilder()
+                .maximumSize(fallbackSize)
+                .expireAfterWrite(fallbackExpireSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * 启动完成之后全量加载
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        sync();
+    }
+
+    /**
+     * 拉取上次同步之后的变更, 模板服务不可用时保留本地数据
+     */
+    @Scheduled(fixedDelayString = "${coupon.template.replica.sync-interval:5000}")
+    public synchronized void sync() {
+
+        CommonResponse<TemplateChanges> response;
+        try {
+            response = templateClient.findTemplateChanges(version);
+        } catch (Exception ex) {
+            log.error("Sync template replica error: {}", ex.getMessage());
+            return;
+        }
+        if (null == response || !Integer.valueOf(0).equals(response.getCode()) || null == response.getData()) {
+            log.warn("Sync template replica failed, keep version: {}", version);
+            return;
+        }
+
+        TemplateChanges changes = response.getData();
+        if (!changes.getFull() && changes.getUpserts().isEmpty() && changes.getRemovedIds().isEmpty()) {
+            version = Math.max(version, changes.getVersion());
+            return;
+        }
+
+        Map<Integer, CouponTemplateSDK> next = changes.getFull()
+                ? new HashMap<>(changes.getUpserts().size())
+                : new HashMap<>(templates);
+        changes.getUpserts().forEach(t -> next.put(t.getId(), t));
+        changes.getRemovedIds().forEach(next::remove);
+        changes.getUpserts().forEach(t -> fallback.invalidate(t.getId()));
+
+        templates = Collections.unmodifiableMap(next);
+        version = changes.getVersion();
+        log.info("Sync template replica: version {}, full {}, upserts {}, removed {}, size {}",
+                version, changes.getFull(), changes.getUpserts().size(),
+                changes.getRemovedIds().size(), next.size());
+    }
+
+    /**
+     * 副本是否已经加载
+     */
+    public boolean isReady() {
+        return version > 0;
+    }
+
+    /**
+     * 所有可用的模板
+     */
+    public List<CouponTemplateSDK> findAll() {
+        return new ArrayList<>(templates.values());
+    }
+
+    /**
+     * 获取模板 ids 到 CouponTemplateSDK 的映射, 副本中没有的模板一次批量通过 Feign 查询
+     * @param ids 优惠券模板 ids
+     * @return Map<key: 模板 id, value: CouponTemplateSDK>, 查询不到的模板不返回
+     */
+    public Map<Integer, CouponTemplateSDK> findIds2Template(Collection<Integer> ids) {
+
+        Map<Integer, CouponTemplateSDK> current = templates;
+        Map<Integer, CouponTemplateSDK> result = new HashMap<>(ids.size());
+        List<Integer> missing = new ArrayList<>();
+
+        for (Integer id : ids) {
+            CouponTemplateSDK template = current.get(id);
+            if (null == template) {
+                template = fallback.getIfPresent(id);
+            }
+            if (null != template) {
+                result.put(id, template);
+            } else {
+                missing.add(id);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            log.debug("Template replica miss, fall back to TemplateClient: {}", missing);
+            Map<Integer, CouponTemplateSDK> remote = templateClient.findIds2Template(missing).getData();
+            if (null != remote) {
+                fallback.putAll(remote);
+                result.putAll(remote);
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,33 @@
+package com.zkw.coupon.conf;
+
+import com.zkw.coupon.feign.ETagCachingClient;
+import feign.Client;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Feign Client 配置
+ */
+@Configuration
+public class FeignClientConfig {
+
+    /**
+     * 用 ETagCachingClient 装饰负载均衡的 Feign Client, 所有 Feign 接口的 GET 请求都支持 ETag 重新验证
+     */
+    @Bean
+    public static BeanPostProcessor eTagClientPostProcessor(
+            @Value("${coupon.feign.etag-cache.maximum-size:1000}") long maximumSize) {
+
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof Client && !(bean instanceof ETagCachingClient)) {
+                    return new ETagCachingClient((Client) bean, maximumSize);
+                }
+                return bean;
+            }
+        };
+    }
+}
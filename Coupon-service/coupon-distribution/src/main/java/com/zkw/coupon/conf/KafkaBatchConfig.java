@@ -0,0 +1,43 @@
+package com.zkw.coupon.conf;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+
+import java.util.Map;
+
+/**
+ * Kafka 批量消费配置
+ * 每次拉取最多 batch-size 条消息, broker 端在积累到 min-bytes 或者等待 linger-millis 之后返回,
+ * 拉取到的消息一次交给批量监听器处理
+ */
+@Configuration
+public class KafkaBatchConfig {
+
+    /**
+     * 批量消费的监听器容器工厂
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<Object, Object> batchKafkaListenerContainerFactory(
+            KafkaProperties kafkaProperties,
+            @Value("${coupon.kafka.batch.batch-size:500}") int batchSize,
+            @Value("${coupon.kafka.batch.linger-millis:200}") int lingerMillis,
+            @Value("${coupon.kafka.batch.min-bytes:65536}") int minBytes) {
+
+        Map<String, Object> props = kafkaProperties.buildConsumerProperties();
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, batchSize);
+        props.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, lingerMillis);
+        props.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, minBytes);
+
+        ConcurrentKafkaListenerContainerFactory<Object, Object> factory =
+                new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(new DefaultKafkaConsumerFactory<>(props));
+        factory.setBatchListener(true);
+
+        return factory;
+    }
+}
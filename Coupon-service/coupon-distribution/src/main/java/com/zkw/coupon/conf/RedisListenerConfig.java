@@ -0,0 +1,30 @@
+package com.zkw.coupon.conf;
+
+import com.zkw.coupon.cache.CouponNearCache;
+import com.zkw.coupon.constant.Constant;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+/**
+ * Redis 频道订阅配置
+ */
+@Configuration
+public class RedisListenerConfig {
+
+    /**
+     * 订阅用户优惠券缓存的失效通知
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       CouponNearCache nearCache) {
+
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(nearCache, new ChannelTopic(Constant.RedisPrefix.USER_COUPON_INVALIDATE_CHANNEL));
+
+        return container;
+    }
+}
@@ -3,7 +3,13 @@ package com.zkw.coupon.dao;
 import com.zkw.coupon.constant.CouponStatus;
 import com.zkw.coupon.entity.Coupon;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -16,4 +22,30 @@ public interface CouponDao extends JpaRepository<Coupon, Integer> {
      * where userId = ... and status = ...
      */
     List<Coupon> findAllByUserIdAndStatus(Long userId, CouponStatus status);
+
+    /**
+     * 当前最大的优惠券 id, 没有记录时返回 0
+     */
+    @Query("SELECT COALESCE(MAX(c.id), 0) FROM Coupon c")
+    Integer findMaxId();
+
+    /**
+     * 以指定的 id 插入优惠券记录, id 已经在 Redis 中分配
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "INSERT INTO coupon (id, template_id, user_id, coupon_code, assign_time, status) " +
+            "VALUES (:id, :templateId, :userId, :couponCode, :assignTime, :status)", nativeQuery = true)
+    int insertWithId(@Param("id") Integer id, @Param("templateId") Integer templateId,
+                     @Param("userId") Long userId, @Param("couponCode") String couponCode,
+                     @Param("assignTime") Date assignTime, @Param("status") Integer status);
+
+    /**
+     * 批量修改优惠券的状态
+     * update coupon set status = ... where id in (...)
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE coupon SET status = :status WHERE id IN (:ids)", nativeQuery = true)
+    int updateStatusByIds(@Param("status") Integer status, @Param("ids") Collection<Integer> ids);
 }
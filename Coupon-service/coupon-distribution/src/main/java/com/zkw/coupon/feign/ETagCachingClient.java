@@ -0,0 +1,115 @@
+package com.zkw.coupon.feign;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import feign.Client;
+import feign.Request;
+import feign.Response;
+import feign.Util;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 支持 ETag 重新验证的 Feign Client
+ * 缓存带有 ETag 的 GET 响应, 再次请求同一个 URL 时携带 If-None-Match,
+ * 服务端返回 304 时直接使用缓存的响应体, 其他请求原样交给被装饰的 Client
+ */
+@Slf4j
+public class ETagCachingClient implements Client {
+
+    // 被装饰的 Client
+    private final Client delegate;
+
+    // URL -> 带 ETag 的响应
+    private final Cache<String, CachedResponse> cache;
+
+    public ETagCachingClient(Client delegate, long maximumSize) {
+        this.delegate = delegate;
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    @Override
+    public Response execute(Request request, Request.Options options) throws IOException {
+
+        if (request.httpMethod() != Request.HttpMethod.GET) {
+            return delegate.execute(request, options);
+        }
+
+        CachedResponse cached = cache.getIfPresent(request.url());
+        Request actual = null == cached ? request : withIfNoneMatch(request, cached.etag);
+        Response response = delegate.execute(actual, options);
+
+        if (null != cached && response.status() == HttpStatus.NOT_MODIFIED.value()) {
+            log.debug("Template not modified: {}, {}", request.url(), cached.etag);
+            response.close();
+            return cached.toResponse(request);
+        }
+
+        String etag = firstHeader(response, HttpHeaders.ETAG);
+        if (response.status() != HttpStatus.OK.value() || null == etag || null == response.body()) {
+            return response;
+        }
+
+        // 读出响应体后缓存, 并返回一个新的响应
+        CachedResponse fresh = new CachedResponse(
+                etag, response.reason(), response.headers(), Util.toByteArray(response.body().asInputStream())
+        );
+        response.close();
+        cache.put(request.url(), fresh);
+
+        return fresh.toResponse(request);
+    }
+
+    private Request withIfNoneMatch(Request request, String etag) {
+
+        Map<String, Collection<String>> headers = new LinkedHashMap<>(request.headers());
+        headers.put(HttpHeaders.IF_NONE_MATCH, Collections.singletonList(etag));
+
+        return Request.create(request.httpMethod(), request.url(), headers, request.body(), request.charset());
+    }
+
+    private String firstHeader(Response response, String name) {
+
+        for (Map.Entry<String, Collection<String>> header : response.headers().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue().iterator().next();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 缓存的响应, 响应体为字节数组, 可以重复构造 Response
+     */
+    private static class CachedResponse {
+
+        private final String etag;
+        private final String reason;
+        private final Map<String, Collection<String>> headers;
+        private final byte[] body;
+
+        CachedResponse(String etag, String reason, Map<String, Collection<String>> headers, byte[] body) {
+            this.etag = etag;
+            this.reason = reason;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        Response toResponse(Request request) {
+            return Response.builder()
+                    .status(HttpStatus.OK.value())
+                    .reason(reason)
+                    .headers(headers)
+                    .body(body)
+                    .request(request)
+                    .build();
+        }
+    }
+}
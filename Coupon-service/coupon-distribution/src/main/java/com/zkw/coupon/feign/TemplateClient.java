@@ -3,6 +3,7 @@ package com.zkw.coupon.feign;
 import com.zkw.coupon.feign.hystrix.TemplateClientHystrix;
 import com.zkw.coupon.vo.CommonResponse;
 import com.zkw.coupon.vo.CouponTemplateSDK;
+import com.zkw.coupon.vo.TemplateChanges;
 import org.springframework.cloud.openfeign.FeignClient;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -29,4 +30,10 @@ public interface TemplateClient {
      */
     @RequestMapping(value = "/coupon-template/template/sdk/infos", method = RequestMethod.GET)
     CommonResponse<Map<Integer, CouponTemplateSDK>> findIds2Template(@RequestParam("ids") Collection<Integer> ids);
+
+    /**
+     * 获取指定版本号之后发生变更的优惠券模板
+     */
+    @RequestMapping(value = "/coupon-template/template/sdk/changes", method = RequestMethod.GET)
+    CommonResponse<TemplateChanges> findTemplateChanges(@RequestParam("since") Long since);
 }
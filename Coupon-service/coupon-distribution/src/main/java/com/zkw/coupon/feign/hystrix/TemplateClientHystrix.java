@@ -3,6 +3,7 @@ package com.zkw.coupon.feign.hystrix;
 import com.zkw.coupon.feign.TemplateClient;
 import com.zkw.coupon.vo.CommonResponse;
 import com.zkw.coupon.vo.CouponTemplateSDK;
+import com.zkw.coupon.vo.TemplateChanges;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
@@ -50,4 +51,22 @@ public class TemplateClientHystrix implements TemplateClient {
                 Collections.emptyMap()
         );
     }
+
+    /**
+     * 获取指定版本号之后发生变更的优惠券模板
+     * 降级时返回空的增量, 版本号不变, 调用方保留本地数据
+     * @param since 已经同步到的版本号
+     */
+    @Override
+    public CommonResponse<TemplateChanges> findTemplateChanges(Long since) {
+
+        log.error("[eureka-client-coupon-template] findTemplateChanges " +
+                "request error");
+
+        return new CommonResponse<>(
+                -1,
+                "[eureka-client-coupon-template] request error",
+                new TemplateChanges(since, false, Collections.emptyList(), Collections.emptyList())
+        );
+    }
 }
@@ -0,0 +1,69 @@
+package com.zkw.coupon.serialization;
+
+import com.alibaba.fastjson.JSON;
+import com.zkw.coupon.constant.CouponStatus;
+import com.zkw.coupon.entity.Coupon;
+
+import java.util.Date;
+
+/**
+ * 优惠券在 Redis 中的存储格式
+ * 紧凑格式只保存优惠券自身的字段: C1|id|templateId|userId|couponCode|assignTime|status,
+ * 不保存模板信息, 读取时再根据 templateId 关联; 空字段保存为空字符串
+ * 读取时兼容旧的 JSON 格式, 切换存储格式不需要清理缓存
+ */
+public class CouponCodec {
+
+    // 紧凑格式的版本标识
+    private static final String COMPACT_PREFIX = "C1|";
+
+    private static final char SEPARATOR = '|';
+
+    private static final int FIELD_COUNT = 7;
+
+    private CouponCodec() {
+    }
+
+    /**
+     * 编码为紧凑格式
+     */
+    public static String encode(Coupon coupon) {
+
+        return COMPACT_PREFIX +
+                toString(coupon.getId()) + SEPARATOR +
+                toString(coupon.getTemplateId()) + SEPARATOR +
+                toString(coupon.getUserId()) + SEPARATOR +
+                toString(coupon.getCouponCode()) + SEPARATOR +
+                (null == coupon.getAssignTime() ? "" : String.valueOf(coupon.getAssignTime().getTime())) + SEPARATOR +
+                (null == coupon.getStatus() ? "" : coupon.getStatus().getCode().toString());
+    }
+
+    /**
+     * 解码, 紧凑格式的结果不包含模板信息
+     */
+    public static Coupon decode(String value) {
+
+        if (!value.startsWith(COMPACT_PREFIX)) {
+            return JSON.parseObject(value, Coupon.class);
+        }
+
+        String[] fields = value.split("\\|", -1);
+        if (fields.length != FIELD_COUNT) {
+            throw new IllegalArgumentException("Illegal compact coupon: " + value);
+        }
+
+        Coupon coupon = new Coupon();
+        coupon.setId(fields[1].isEmpty() ? null : Integer.valueOf(fields[1]));
+        coupon.setTemplateId(fields[2].isEmpty() ? null : Integer.valueOf(fields[2]));
+        coupon.setUserId(fields[3].isEmpty() ? null : Long.valueOf(fields[3]));
+        coupon.setCouponCode(fields[4].isEmpty() ? null : fields[4]);
+        coupon.setAssignTime(fields[5].isEmpty() ? null : new Date(Long.parseLong(fields[5])));
+        coupon.setStatus(fields[6].isEmpty() ? null : CouponStatus.of(Integer.valueOf(fields[6])));
+
+        return coupon;
+    }
+
+    private static String toString(Object field) {
+        return null == field ? "" : field.toString();
+    }
+}
@@ -2,6 +2,8 @@ package com.zkw.coupon.service;
 
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 
+import java.util.List;
+
 /**
  * Kafka 相关的服务接口定义
  */
@@ -12,4 +14,10 @@ public interface IKafkaService {
      * @param record {@link ConsumerRecord}
      */
     void consumeCouponKafkaMessage(ConsumerRecord<?, ?> record);
+
+    /**
+     * 批量消费优惠券 Kafka 消息, 一次拉取到的消息按目标状态合并更新
+     * @param records {@link ConsumerRecord}s
+     */
+    void consumeCouponKafkaMessages(List<ConsumerRecord<?, ?>> records);
 }
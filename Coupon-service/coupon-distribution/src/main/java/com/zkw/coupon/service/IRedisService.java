@@ -2,8 +2,11 @@ package com.zkw.coupon.service;
 
 import com.zkw.coupon.entity.Coupon;
 import com.zkw.coupon.exception.CouponException;
+import com.zkw.coupon.vo.CouponTemplateSDK;
 
 import java.util.List;
+import java.util.Map;
+import java.util.function.IntSupplier;
 
 /**
  * Redis 相关的操作服务接口定义
@@ -16,7 +19,7 @@ public interface IRedisService {
      * 根据 userId 和状态找到缓存的优惠券列表数据
      * @param userId 用户 id
      * @param status 优惠券状态 {@link com.zkw.coupon.constant.CouponStatus}
-     * @return {@link Coupon}s, 注意, 可能会返回 null, 代表从没有过记录
+     * @return {@link Coupon}s, 缓存未命中时返回空列表
      */
     List<Coupon> getCachedCoupons(Long userId, Integer status);
 
@@ -28,18 +31,71 @@ public interface IRedisService {
     void saveEmptyCouponListToCache(Long userId, List<Integer> status);
 
     /**
-     * 尝试从 Cache 中获取一个优惠券码
-     * @param templateId 优惠券模板主键
-     * @return 优惠券码
+     * 将优惠券保存到 Cache 中
+     * @param userId 用户 id
+     * @param coupons {@link Coupon}
+     * @param status 优惠券状态
+     * @return 保存成功的个数
      */
-    String tryToAcquireCouponCodeFromCache(Integer templateId);
+    Integer addCouponToCache(Long userId, List<Coupon> coupons, Integer status) throws CouponException;
 
     /**
-     * 将优惠券保存到 Cache 中
+     * 将从数据库加载的优惠券直接写入对应状态的 Cache, 不做状态迁移, 缓存未命中时调用
      * @param userId 用户 id
      * @param coupons {@link Coupon}
      * @param status 优惠券状态
      * @return 保存成功的个数
      */
-    Integer addCouponToCache(Long userId, List<Coupon> coupons, Integer status) throws CouponException;
+    Integer reloadCouponsToCache(Long userId, List<Coupon> coupons, Integer status);
+
+    /**
+     * 用户可用优惠券缓存的待同步版本, 缓存先于数据库变化之后的一段时间内存在
+     * @param userId 用户 id
+     * @return 版本, 不存在时返回 null
+     */
+    String getPendingVersion(Long userId);
+
+    /**
+     * 用从数据库加载的优惠券整体替换对应状态的 Cache, 后台刷新时调用
+     * @param userId 用户 id
+     * @param coupons {@link Coupon}, 为空时替换为一张无效的优惠券
+     * @param status 优惠券状态
+     * @param version 读取数据库之前的待同步版本, 替换时版本已经变化则放弃替换
+     * @return 是否替换
+     */
+    boolean replaceCouponsInCache(Long userId, List<Coupon> coupons, Integer status, String version);
+
+    /**
+     * 获取用户每个模板已领取的可用优惠券个数, 不需要反序列化优惠券
+     * @param userId 用户 id
+     * @return Map<key: 模板 id, value: 个数>, 用户的可用优惠券缓存还没有加载时返回 null
+     */
+    Map<Integer, Integer> getClaimCounts(Long userId);
+
+    /**
+     * 失效本实例缓存的用户可用优惠券和领取计数, 下次读取时回到 Redis
+     * @param userId 用户 id
+     */
+    void invalidateClaimCounts(Long userId);
+
+    /**
+     * 在一次 Redis 调用中完成领取: 校验领取上限, 取出优惠券码, 分配优惠券 id, 写入用户可用优惠券缓存
+     * @param userId 用户 id
+     * @param template {@link CouponTemplateSDK} 优惠券模板
+     * @param idFloor 读取数据库中已有的最大优惠券 id, 只有 Redis 中的 id 序列不存在时才调用, 以此为起点重新建立
+     * @return 领取到的 {@link Coupon}, 用户的可用优惠券缓存或领取计数还没有建立时返回 null
+     */
+    Coupon acquireCoupon(Long userId, CouponTemplateSDK template, IntSupplier idFloor) throws CouponException;
+
+    /**
+     * id 序列落后于数据库(例如保存时主键冲突)时, 以数据库中的最大 id 为起点重新建立
+     * @param idFloor 数据库中已有的最大优惠券 id
+     */
+    void reseedCouponIdSequence(long idFloor);
+
+    /**
+     * 撤销一次领取: 从用户可用优惠券缓存中删除, 并把优惠券码放回码池, 在领取之后保存数据库失败时调用
+     * @param coupon 领取到的 {@link Coupon}
+     */
+    void rollbackAcquiredCoupon(Coupon coupon);
 }
\ No newline at end of file
@@ -1,20 +1,23 @@
 package com.zkw.coupon.service.impl;
 
 import com.alibaba.fastjson.JSON;
+import com.google.common.collect.Lists;
 import com.zkw.coupon.constant.Constant;
 import com.zkw.coupon.constant.CouponStatus;
 import com.zkw.coupon.dao.CouponDao;
-import com.zkw.coupon.entity.Coupon;
 import com.zkw.coupon.service.IKafkaService;
 import com.zkw.coupon.vo.CouponKafkaMessage;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.collections4.CollectionUtils;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Service;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 /**
  * Kafka 相关的服务接口实现
@@ -24,6 +27,9 @@ import java.util.Optional;
 @Service
 public class KafkaServiceImpl implements IKafkaService {
 
+    // 一条 update 语句中 id 的最大个数
+    private static final int MAX_UPDATE_SIZE = 1000;
+
     private final CouponDao couponDao;
 
     public KafkaServiceImpl(CouponDao couponDao) {
@@ -31,11 +37,12 @@ public class KafkaServiceImpl implements IKafkaService {
     }
 
     /**
-     * 消费优惠券 Kafka 消息
+     * 消费优惠券 Kafka 消息, 关闭批量消费时使用
      * @param record {@link ConsumerRecord}
      */
     @Override
-    @KafkaListener(topics = {Constant.TOPIC}, groupId = "kafka-coupon-1")
+    @KafkaListener(topics = {Constant.TOPIC}, groupId = "kafka-coupon-1",
+            autoStartup = "#{!${coupon.kafka.batch.enabled:true}}")
     public void consumeCouponKafkaMessage(ConsumerRecord<?, ?> record) {
 
         Optional<?> kafkaMessage = Optional.ofNullable(record.value());
@@ -44,19 +51,56 @@ public class KafkaServiceImpl implements IKafkaService {
             CouponKafkaMessage couponInfo = JSON.parseObject(message.toString(), CouponKafkaMessage.class);
 
             log.info("Received CouponKafkaMessage: {}", message.toString());
-            CouponStatus status = CouponStatus.of(couponInfo.getStatus());
-
-            switch (status) {
-                case USABLE:
-                    break;
-                case USED:
-                    processUsedCoupons(couponInfo, status);
-                    break;
-                case EXPIRED:
-                    processExpiredCoupons(couponInfo, status);
-                    break;
-                default:
-            }
+            processCoupons(couponInfo);
+        }
+    }
+
+    /**
+     * 批量消费优惠券 Kafka 消息
+     * 同一个优惠券出现在多条消息中时以最后一条为准, 再按目标状态合并, 每个状态只执行一次批量更新
+     * @param records {@link ConsumerRecord}s
+     */
+    @Override
+    @KafkaListener(topics = {Constant.TOPIC}, groupId = "kafka-coupon-1",
+            containerFactory = "batchKafkaListenerContainerFactory",
+            autoStartup = "${coupon.kafka.batch.enabled:true}")
+    public void consumeCouponKafkaMessages(List<ConsumerRecord<?, ?>> records) {
+
+        log.info("Received CouponKafkaMessages: {}", records.size());
+
+        // 优惠券 id -> 最后一次变更的状态
+        Map<Integer, Integer> id2Status = new LinkedHashMap<>();
+        records.stream()
+                .map(ConsumerRecord::value)
+                .filter(Objects::nonNull)
+                .map(v -> JSON.parseObject(v.toString(), CouponKafkaMessage.class))
+                .forEach(m -> m.getIds().forEach(id -> id2Status.put(id, m.getStatus())));
+
+        Map<Integer, List<Integer>> status2Ids = id2Status.entrySet().stream()
+                .collect(Collectors.groupingBy(
+                        Map.Entry::getValue,
+                        Collectors.mapping(Map.Entry::getKey, Collectors.toList())
+                ));
+        status2Ids.forEach((status, ids) -> processCoupons(new CouponKafkaMessage(status, ids)));
+    }
+
+    /**
+     * 按照目标状态处理优惠券信息
+     */
+    private void processCoupons(CouponKafkaMessage couponInfo) {
+
+        CouponStatus status = CouponStatus.of(couponInfo.getStatus());
+
+        switch (status) {
+            case USABLE:
+                break;
+            case USED:
+                processUsedCoupons(couponInfo, status);
+                break;
+            case EXPIRED:
+                processExpiredCoupons(couponInfo, status);
+                break;
+            default:
         }
     }
 
@@ -78,21 +122,22 @@ public class KafkaServiceImpl implements IKafkaService {
 
     /**
      * 根据状态处理优惠券信息
+     * 不需要先查询再逐条保存, 直接按 id 批量更新状态, 过长的 id 列表分成多次更新
      */
     private void processCouponsByStatus(CouponKafkaMessage kafkaMessage, CouponStatus status) {
-        List<Coupon> coupons = couponDao.findAllById(
-                kafkaMessage.getIds()
-        );
-        if (CollectionUtils.isEmpty(coupons)
-                || coupons.size() != kafkaMessage.getIds().size()) {
-            log.error("Can not find right coupon info: {}",
-                    JSON.toJSONString(kafkaMessage));
+
+        int updated = 0;
+        for (List<Integer> ids : Lists.partition(kafkaMessage.getIds(), MAX_UPDATE_SIZE)) {
+            updated += couponDao.updateStatusByIds(status.getCode(), ids);
+        }
+
+        if (updated != kafkaMessage.getIds().size()) {
+            log.error("Can not find right coupon info: {}, updated: {}",
+                    JSON.toJSONString(kafkaMessage), updated);
             // TODO 发送邮件
             return;
         }
 
-        coupons.forEach(c -> c.setStatus(status));
-        log.info("CouponKafkaMessage ops coupon count: {}",
-                couponDao.saveAll(coupons).size());
+        log.info("CouponKafkaMessage ops coupon count: {}", updated);
     }
 }
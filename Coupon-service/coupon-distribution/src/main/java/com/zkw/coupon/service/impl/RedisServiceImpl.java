@@ -1,22 +1,35 @@
 package com.zkw.coupon.service.impl;
 
 import com.alibaba.fastjson.JSON;
+import com.zkw.coupon.cache.CouponCacheRefresher;
+import com.zkw.coupon.cache.CouponCodeBuffer;
+import com.zkw.coupon.cache.CouponCodePool;
+import com.zkw.coupon.cache.CouponNearCache;
+import com.zkw.coupon.cache.TemplateReplica;
 import com.zkw.coupon.constant.Constant;
 import com.zkw.coupon.constant.CouponStatus;
 import com.zkw.coupon.entity.Coupon;
 import com.zkw.coupon.exception.CouponException;
+import com.zkw.coupon.serialization.CouponCodec;
 import com.zkw.coupon.service.IRedisService;
+import com.zkw.coupon.vo.CouponTemplateSDK;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.RandomUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.dao.DataAccessException;
 import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
 import java.util.stream.Collectors;
 
 /**
@@ -26,37 +39,180 @@ import java.util.stream.Collectors;
 @Service
 public class RedisServiceImpl implements IRedisService {
 
+    // 领取优惠券的脚本, 校验领取上限、取出优惠券码、写入用户缓存在一次调用中完成
+    private static final DefaultRedisScript<String> ACQUIRE_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        ACQUIRE_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/acquire_coupon.lua")
+        ));
+        ACQUIRE_SCRIPT.setResultType(String.class);
+    }
+
+    // id 序列落后于数据库时重新建立的脚本
+    private static final DefaultRedisScript<Long> RESEED_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        RESEED_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/reseed_coupon_id.lua")
+        ));
+        RESEED_SCRIPT.setResultType(Long.class);
+    }
+
+    // 获取(必要时建立)用户领取计数的脚本
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        CLAIM_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/claim_coupon_counts.lua")
+        ));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    // 把可用优惠券移动到已使用或已过期缓存的脚本, 只检查被移动的优惠券是否存在
+    private static final DefaultRedisScript<String> MOVE_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        MOVE_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/move_coupons.lua")
+        ));
+        MOVE_SCRIPT.setResultType(String.class);
+    }
+
+    // 读取用户优惠券缓存的脚本, 已知没有优惠券时不读取缓存的内容
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> READ_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        READ_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/read_coupons.lua")
+        ));
+        READ_SCRIPT.setResultType(List.class);
+    }
+
+    // 用数据库中的记录整体替换用户优惠券缓存的脚本
+    private static final DefaultRedisScript<String> REPLACE_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        REPLACE_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/replace_coupons.lua")
+        ));
+        REPLACE_SCRIPT.setResultType(String.class);
+    }
+
     private final StringRedisTemplate redisTemplate;
 
-    public RedisServiceImpl(StringRedisTemplate redisTemplate) {
+    // 用户优惠券的进程内缓存
+    private final CouponNearCache nearCache;
+
+    // 可用优惠券模板的本地副本
+    private final TemplateReplica templateReplica;
+
+    // 是否以紧凑格式保存优惠券, 不保存模板信息
+    private final boolean compact;
+
+    // 节点本地的优惠券码预取缓冲
+    private final CouponCodeBuffer codeBuffer;
+
+    // 可用优惠券缓存的后台刷新
+    private final CouponCacheRefresher cacheRefresher;
+
+    public RedisServiceImpl(StringRedisTemplate redisTemplate, CouponNearCache nearCache,
+                            TemplateReplica templateReplica, CouponCodeBuffer codeBuffer,
+                            CouponCacheRefresher cacheRefresher,
+                            @Value("${coupon.cache.compact:true}") boolean compact) {
         this.redisTemplate = redisTemplate;
+        this.nearCache = nearCache;
+        this.templateReplica = templateReplica;
+        this.compact = compact;
+        this.codeBuffer = codeBuffer;
+        this.cacheRefresher = cacheRefresher;
     }
 
     /**
      * 根据 userId 和状态找到缓存的优惠券列表数据
      * @param userId 用户 id
      * @param status 优惠券状态 {@link CouponStatus}
-     * @return {@link Coupon}s, 注意, 可能会返回 null, 代表从没有过记录
+     * @return {@link Coupon}s, 缓存未命中时返回空列表; 返回的优惠券可能被共享, 不能修改
      */
     @Override
     public List<Coupon> getCachedCoupons(Long userId, Integer status) {
 
+        // 已知没有优惠券, 不需要读取和解析缓存中的无效优惠券
+        if (nearCache.isKnownEmpty(userId, status)) {
+            return Collections.singletonList(Coupon.invalidCoupon());
+        }
+
+        List<Coupon> nearCached = nearCache.get(userId, status);
+        if (null != nearCached) {
+            log.debug("Get coupons from near cache: {}, {}", userId, status);
+            return nearCached;
+        }
+
         log.info("Get coupons from Cache: {}, {}", userId, status);
+        // 在读取 Redis 之前记录失效代数, 读取期间发生失效时不写入近端缓存
+        long generation = nearCache.generation(userId);
         String redisKey = status2RedisKey(status, userId);
 
-        List<String> couponStr = redisTemplate.opsForHash().values(redisKey)
-                .stream()
+        List<Object> cached = readCachedCoupons(userId, status, redisKey);
+        if (null == cached) {
+            nearCache.putEmpty(userId, status, generation);
+            return Collections.singletonList(Coupon.invalidCoupon());
+        }
+
+        List<String> couponStr = cached.stream()
                 .map(o -> Objects.toString(o, null))
                 .collect(Collectors.toList());
 
+        // 缓存未命中, 由调用方从数据库加载; 数据库中也没有记录时由调用方写入无效的优惠券
         if (CollectionUtils.isEmpty(couponStr)) {
-            saveEmptyCouponListToCache(userId, Collections.singletonList(status));
             return Collections.emptyList();
         }
 
-        return couponStr.stream()
-                .map(cs -> JSON.parseObject(cs, Coupon.class))
+        List<Coupon> coupons = couponStr.stream()
+                .map(CouponCodec::decode)
                 .collect(Collectors.toList());
+        // 模板信息没有全部关联上时(模板服务降级), 不写入近端缓存
+        if (fillTemplateSDK(coupons)) {
+            nearCache.put(userId, status, coupons, generation);
+        }
+
+        return coupons;
+    }
+
+    /**
+     * 读取缓存的优惠券, 用户的已知为空标记存在时不读取缓存的内容;
+     * 可用优惠券同时检查新鲜标记, 标记不存在时由本次读取写入一个短期的刷新租约,
+     * 写入成功并且缓存存在, 说明缓存已经软过期并且由当前节点负责刷新
+     * @return 缓存的优惠券, 已知没有优惠券时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object> readCachedCoupons(Long userId, Integer status, String redisKey) {
+
+        boolean checkFresh = cacheRefresher.isEnabled() && CouponStatus.of(status) == CouponStatus.USABLE;
+
+        List<Object> results = redisTemplate.execute(
+                READ_SCRIPT,
+                Arrays.asList(emptyKey(status, userId), redisKey, freshKey(userId)),
+                checkFresh ? "1" : "0",
+                String.valueOf(cacheRefresher.getLeaseSeconds())
+        );
+        if (CollectionUtils.isEmpty(results)) {
+            return Collections.emptyList();
+        }
+
+        // 标记和无效的优惠券都还在缓存中时才认为没有优惠券, 缓存已经过期的需要重新从数据库加载
+        String state = results.get(0).toString();
+        if ("EMPTY".equals(state)) {
+            return null;
+        }
+        if ("STALE".equals(state)) {
+            log.info("Coupon cache is stale, refresh in background: {}, {}", userId, status);
+            cacheRefresher.markStale(userId, status);
+        }
+
+        return results.subList(1, results.size());
     }
 
     /**
@@ -73,7 +229,7 @@ public class RedisServiceImpl implements IRedisService {
 
         // key: coupon_id, value: 序列化的 coupon
         Map<String, String> invalidCouponMap = new HashMap<>();
-        invalidCouponMap.put("-1", JSON.toJSONString(Coupon.invalidCoupon()));
+        invalidCouponMap.put("-1", encode(Coupon.invalidCoupon()));
 
         // 用户优惠券缓存信息
         // KV
@@ -87,9 +243,20 @@ public class RedisServiceImpl implements IRedisService {
 
                 status.forEach(s -> {
 
+                    // 无效的优惠券和已知为空的标记同时过期
+                    long seconds = CouponStatus.of(s) == CouponStatus.USABLE
+                            ? cacheRefresher.hardSeconds(getRandomExpirationTime(1, 2))
+                            : getRandomExpirationTime(1, 2);
                     String redisKey = status2RedisKey(s, userId);
                     redisOperations.opsForHash().putAll(redisKey, invalidCouponMap);
+                    redisOperations.expire(redisKey, seconds, TimeUnit.SECONDS);
+                    redisOperations.opsForValue().set(emptyKey(s, userId), "1", seconds, TimeUnit.SECONDS);
                 });
+                // 可用优惠券变化后, 领取计数需要重新统计
+                if (status.contains(CouponStatus.USABLE.getCode())) {
+                    redisOperations.delete(claimKey(userId));
+                    markUsableFresh(redisOperations, userId, getRandomExpirationTime(1, 2));
+                }
 
                 return null;
             }
@@ -97,24 +264,7 @@ public class RedisServiceImpl implements IRedisService {
 
         log.info("Pipeline Execute Result: {}",
                 JSON.toJSONString(redisTemplate.executePipelined(sessionCallback)));
-    }
-
-    /**
-     * 尝试从 Cache 中获取一个优惠券码
-     * @param templateId 优惠券模板主键
-     * @return 优惠券码
-     */
-    @Override
-    public String tryToAcquireCouponCodeFromCache(Integer templateId) {
-
-        String redisKey = String.format("%s%s",
-                Constant.RedisPrefix.COUPON_TEMPLATE, templateId.toString());
-        // 因为优惠券码不存在顺序关系, 左边 pop 或右边 pop, 没有影响
-        String couponCode = redisTemplate.opsForList().leftPop(redisKey);
-
-        log.info("Acquire coupon code: {}, {}, {}", templateId, redisKey, couponCode);
-
-        return couponCode;
+        nearCache.invalidate(userId, status);
     }
 
     /**
@@ -132,23 +282,134 @@ public class RedisServiceImpl implements IRedisService {
 
         Integer result = -1;
         CouponStatus couponStatus = CouponStatus.of(status);
+        // 写入优惠券之前移出已知为空的记录, 写入之后的失效通知会清除各个节点的本地记录
+        removeKnownEmpty(userId, CouponStatus.USABLE == couponStatus
+                ? Collections.singletonList(status)
+                : Arrays.asList(CouponStatus.USABLE.getCode(), status));
 
         switch (couponStatus) {
             case USABLE:
                 result = addCouponToCacheForUsable(userId, coupons);
+                nearCache.invalidate(userId, Collections.singletonList(status));
                 break;
             case USED:
                 result = addCouponToCacheForUsed(userId, coupons);
+                nearCache.invalidate(userId, Arrays.asList(CouponStatus.USABLE.getCode(), status));
                 break;
             case EXPIRED:
                 result = addCouponToCacheForExpired(userId, coupons);
+                nearCache.invalidate(userId, Arrays.asList(CouponStatus.USABLE.getCode(), status));
                 break;
             default:
         }
+        // 三种状态都会改变可用优惠券, 领取计数需要重新统计
+        redisTemplate.delete(claimKey(userId));
 
         return result;
     }
 
+    /**
+     * 将从数据库加载的优惠券直接写入对应状态的 Cache, 不做状态迁移, 缓存未命中时调用
+     * @param userId 用户 id
+     * @param coupons {@link Coupon}
+     * @param status 优惠券状态
+     * @return 保存成功的个数
+     */
+    @Override
+    @SuppressWarnings("all")
+    public Integer reloadCouponsToCache(Long userId, List<Coupon> coupons, Integer status) {
+
+        log.info("Reload coupons to cache: {}, {}, {}", userId, coupons.size(), status);
+
+        Map<String, String> needCachedObject = new HashMap<>(coupons.size());
+        coupons.forEach(c -> needCachedObject.put(c.getId().toString(), encode(c)));
+        String redisKey = status2RedisKey(status, userId);
+        boolean usable = CouponStatus.of(status) == CouponStatus.USABLE;
+
+        SessionCallback<Object> sessionCallback = new SessionCallback<Object>() {
+            @Override
+            public Object execute(RedisOperations redisOperations) throws DataAccessException {
+
+                redisOperations.delete(emptyKey(status, userId));
+                redisOperations.opsForHash().putAll(redisKey, needCachedObject);
+                if (usable) {
+                    expireUsable(redisOperations, userId);
+                    redisOperations.delete(claimKey(userId));
+                } else {
+                    redisOperations.expire(redisKey, getRandomExpirationTime(1, 2), TimeUnit.SECONDS);
+                }
+
+                return null;
+            }
+        };
+        redisTemplate.executePipelined(sessionCallback);
+        nearCache.invalidate(userId, Collections.singletonList(status));
+
+        return needCachedObject.size();
+    }
+
+    /**
+     * 用户可用优惠券缓存的待同步版本
+     * @param userId 用户 id
+     * @return 版本, 不存在时返回 null
+     */
+    @Override
+    public String getPendingVersion(Long userId) {
+        return redisTemplate.opsForValue().get(pendingKey(userId));
+    }
+
+    /**
+     * 用从数据库加载的优惠券整体替换对应状态的 Cache
+     * 新的记录先写入临时 key, 再由脚本校验待同步版本并 RENAME, 读取缓存的请求不会看到一半的结果
+     * @param userId 用户 id
+     * @param coupons {@link Coupon}, 为空时替换为一张无效的优惠券
+     * @param status 优惠券状态
+     * @param version 读取数据库之前的待同步版本
+     * @return 是否替换
+     */
+    @Override
+    @SuppressWarnings("all")
+    public boolean replaceCouponsInCache(Long userId, List<Coupon> coupons, Integer status, String version) {
+
+        Map<String, String> needCachedObject = new HashMap<>(Math.max(coupons.size(), 1));
+        if (coupons.isEmpty()) {
+            needCachedObject.put("-1", encode(Coupon.invalidCoupon()));
+        }
+        coupons.forEach(c -> needCachedObject.put(c.getId().toString(), encode(c)));
+        String redisKey = status2RedisKey(status, userId);
+        String tempKey = String.format("%s_%s", redisKey, UUID.randomUUID().toString());
+
+        SessionCallback<Object> sessionCallback = new SessionCallback<Object>() {
+            @Override
+            public Object execute(RedisOperations redisOperations) throws DataAccessException {
+
+                redisOperations.opsForHash().putAll(tempKey, needCachedObject);
+                redisOperations.expire(tempKey, cacheRefresher.getLeaseSeconds(), TimeUnit.SECONDS);
+
+                return null;
+            }
+        };
+        redisTemplate.executePipelined(sessionCallback);
+
+        boolean usable = CouponStatus.of(status) == CouponStatus.USABLE;
+        long softSeconds = getRandomExpirationTime(1, 2);
+        String result = redisTemplate.execute(
+                REPLACE_SCRIPT,
+                Arrays.asList(tempKey, redisKey, pendingKey(userId), emptyKey(status, userId),
+                        claimKey(userId), freshKey(userId)),
+                null == version ? "" : version,
+                String.valueOf(usable ? cacheRefresher.hardSeconds(softSeconds) : softSeconds),
+                usable && cacheRefresher.isEnabled() ? String.valueOf(softSeconds) : "0"
+        );
+        log.info("Replace coupons in cache: {}, {}, {}, {}", userId, status, coupons.size(), result);
+        if (!"OK".equals(result)) {
+            return false;
+        }
+
+        nearCache.invalidate(userId, Collections.singletonList(status));
+        return true;
+    }
+
     /**
      * 新增优惠券到 Cache 中
      */
@@ -161,15 +422,25 @@ public class RedisServiceImpl implements IRedisService {
         Map<String, String> needCachedObject = new HashMap<>(coupons.size());
         coupons.forEach(c -> needCachedObject.put(
                 c.getId().toString(),
-                JSON.toJSONString(c)
+                encode(c)
         ));
 
         String redisKey = status2RedisKey(CouponStatus.USABLE.getCode(), userId);
 
-        redisTemplate.opsForHash().putAll(redisKey, needCachedObject);
-        log.info("Add {} coupons to Cache:{}, {}", needCachedObject.size(), userId, redisKey);
+        SessionCallback<Object> sessionCallback = new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("all")
+            public Object execute(RedisOperations redisOperations) throws DataAccessException {
 
-        redisTemplate.expire(redisKey, getRandomExpirationTime(1, 2), TimeUnit.SECONDS);
+                redisOperations.opsForHash().putAll(redisKey, needCachedObject);
+                expireUsable(redisOperations, userId);
+                markPending(redisOperations, userId);
+
+                return null;
+            }
+        };
+        redisTemplate.executePipelined(sessionCallback);
+        log.info("Add {} coupons to Cache:{}, {}", needCachedObject.size(), userId, redisKey);
 
         return needCachedObject.size();
     }
@@ -177,142 +448,357 @@ public class RedisServiceImpl implements IRedisService {
     /**
      * 将已使用的优惠券加入到 Cache 中
      */
-    @SuppressWarnings("all")
     private Integer addCouponToCacheForUsed(Long userId, List<Coupon> coupons) throws CouponException {
 
         // 如果 status 是 USED, 代表用户操作是使用当前的优惠券, 影响到两个 Cache
         // USABLE, USED
         log.debug("Add coupon to cache for used");
 
-        Map<String, String> needCachedForUsed = new HashMap<>(coupons.size());
-
-        String redisKeyForUsable = status2RedisKey(CouponStatus.USABLE.getCode(), userId);
-        String redisKeyForUsed = status2RedisKey(CouponStatus.USED.getCode(), userId);
+        return moveUsableCoupons(userId, coupons, CouponStatus.USED.getCode());
+    }
 
-        // 获取当前用户可用的优惠券
-        List<Coupon> curUsableCoupons = getCachedCoupons(userId, CouponStatus.USABLE.getCode());
+    /**
+     * 将过期的优惠券加入到 Cache 中
+     */
+    private Integer addCouponToCacheForExpired(Long userId, List<Coupon> coupons) throws CouponException {
 
-        // 当前可用的优惠券个数一定大于1
-        assert curUsableCoupons.size() > coupons.size();
+        // status 是 EXPIRED, 代表是已有的优惠券过期了, 影响到两个 Cache
+        // USABLE, EXPIRED
+        log.debug("Add coupon to cache for expired");
 
-        coupons.forEach(c -> needCachedForUsed.put(
-                c.getId().toString(),
-                JSON.toJSONString(c)
-        ));
+        return moveUsableCoupons(userId, coupons, CouponStatus.EXPIRED.getCode());
+    }
 
-        // 校验当前的优惠券参数是否与 cache 中的匹配
-        List<Integer> curUsableIds = curUsableCoupons.stream()
-                .map(Coupon::getId)
-                .collect(Collectors.toList());
-        List<Integer> paramIds = coupons.stream()
-                .map(Coupon::getId)
-                .collect(Collectors.toList());
+    /**
+     * 把可用优惠券移动到目标状态的 Cache 中
+     * 由脚本只检查本次移动的优惠券 id 是否都在可用优惠券 Cache 中, 不需要读取和解析用户全部的可用优惠券,
+     * 检查和移动在一次调用中完成, 有优惠券不匹配时不做任何修改
+     */
+    private Integer moveUsableCoupons(Long userId, List<Coupon> coupons, Integer status) throws CouponException {
+
+        long softSeconds = getRandomExpirationTime(1, 2);
+        List<String> args = new ArrayList<>(4 + coupons.size() * 2);
+        args.add(String.valueOf(cacheRefresher.hardSeconds(softSeconds)));
+        args.add(cacheRefresher.isEnabled() ? String.valueOf(softSeconds) : "0");
+        args.add(getRandomExpirationTime(1, 2).toString());
+        args.add(String.valueOf(cacheRefresher.getPendingSeconds()));
+        coupons.forEach(c -> {
+            args.add(c.getId().toString());
+            args.add(encode(c));
+        });
+
+        String result = redisTemplate.execute(
+                MOVE_SCRIPT,
+                Arrays.asList(
+                        status2RedisKey(CouponStatus.USABLE.getCode(), userId),
+                        status2RedisKey(status, userId),
+                        freshKey(userId),
+                        pendingKey(userId)
+                ),
+                args.toArray()
+        );
 
-        if (!CollectionUtils.isSubCollection(paramIds, curUsableCoupons)) {
+        // 校验当前的优惠券参数是否与 Cache 中的匹配
+        if (!"OK".equals(result)) {
             log.error("CurCoupons not equals to cache: {}, {}, {}",
-                    userId, JSON.toJSONString(curUsableIds), JSON.toJSONString(paramIds));
+                    userId, result, JSON.toJSONString(coupons.stream().map(Coupon::getId).collect(Collectors.toList())));
             throw new CouponException("CurCoupons not equals to cache");
         }
 
-        List<String> needCleanKey = paramIds.stream()
-                .map(Object::toString)
-                .collect(Collectors.toList());
+        return coupons.size();
+    }
+
+    /**
+     * 获取用户每个模板已领取的可用优惠券个数, 先查近端缓存, 再由脚本读取(必要时从可用优惠券缓存中统计)
+     * @param userId 用户 id
+     * @return Map<key: 模板 id, value: 个数>, 用户的可用优惠券缓存还没有加载时返回 null
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<Integer, Integer> getClaimCounts(Long userId) {
+
+        Map<Integer, Integer> nearCached = nearCache.getClaims(userId);
+        if (null != nearCached) {
+            return nearCached;
+        }
+
+        long generation = nearCache.generation(userId);
+        List<Object> fields = redisTemplate.execute(
+                CLAIM_SCRIPT,
+                Arrays.asList(status2RedisKey(CouponStatus.USABLE.getCode(), userId), claimKey(userId))
+        );
+        if (CollectionUtils.isEmpty(fields)) {
+            return null;
+        }
+
+        // 第一个元素是计数剩余的有效期, 之后字段与值交替出现, 跳过占位字段 -1
+        long ttlMillis = Long.parseLong(fields.get(0).toString());
+        Map<Integer, Integer> counts = new HashMap<>(fields.size() / 2);
+        for (int i = 1; i + 1 < fields.size(); i += 2) {
+            Integer templateId = Integer.valueOf(fields.get(i).toString());
+            if (templateId != -1) {
+                counts.put(templateId, Integer.valueOf(fields.get(i + 1).toString()));
+            }
+        }
+        nearCache.putClaims(userId, counts, ttlMillis, generation);
+
+        return counts;
+    }
+
+    /**
+     * 失效本实例缓存的用户可用优惠券和领取计数
+     * @param userId 用户 id
+     */
+    @Override
+    public void invalidateClaimCounts(Long userId) {
+        nearCache.invalidateUsableLocal(userId);
+    }
+
+    /**
+     * 在一次 Redis 调用中完成领取
+     * 领取的优惠券总是以紧凑格式写入缓存, 读取时兼容两种格式
+     * @param userId 用户 id
+     * @param template {@link CouponTemplateSDK} 优惠券模板
+     * @param idFloor 读取数据库中已有的最大优惠券 id, 只有 id 序列不存在时才调用
+     * @return 领取到的 {@link Coupon}, 用户的可用优惠券缓存或领取计数还没有建立时返回 null
+     */
+    @Override
+    public Coupon acquireCoupon(Long userId, CouponTemplateSDK template, IntSupplier idFloor) throws CouponException {
+
+        String templateId = template.getId().toString();
+        // 每次调用只访问一个分片, 从随机的分片开始, 分片为空时换下一个分片
+        List<CouponCodePool> pools = codeBuffer.pools(template.getId());
+        int start = ThreadLocalRandom.current().nextInt(pools.size());
+
+        // 节点预取的优惠券码, 没有时由脚本从码池中取出
+        String buffered = codeBuffer.take(template.getId());
+        String result = null;
+        // id 序列存在时不需要起点, 脚本返回 NOSEQ 时才从数据库读取
+        String floor = "";
+        try {
+            for (int i = 0; i != pools.size(); ) {
+                CouponCodePool pool = pools.get((start + i) % pools.size());
+                result = redisTemplate.execute(
+                        ACQUIRE_SCRIPT,
+                        Arrays.asList(
+                                status2RedisKey(CouponStatus.USABLE.getCode(), userId),
+                                pool.getListKey(),
+                                pool.getMetaKey(),
+                                pool.getBinKey(),
+                                Constant.RedisPrefix.COUPON_ID_SEQUENCE,
+                                claimKey(userId),
+                                codeBuffer.inflightKey(),
+                                pendingKey(userId)
+                        ),
+                        templateId,
+                        template.getRule().getLimitation().toString(),
+                        userId.toString(),
+                        String.valueOf(System.currentTimeMillis()),
+                        String.valueOf(cacheRefresher.hardSeconds(getRandomExpirationTime(1, 2))),
+                        floor,
+                        pool.isBinary() ? "1" : "0",
+                        null == buffered || i != 0 ? "" : buffered,
+                        String.valueOf(cacheRefresher.getPendingSeconds())
+                );
+                if ("NOSEQ".equals(result) && floor.isEmpty()) {
+                    floor = String.valueOf(idFloor.getAsInt());
+                    log.info("Coupon id sequence not exists, reseed from db: {}", floor);
+                    continue;
+                }
+                if (!"EMPTY".equals(result)) {
+                    break;
+                }
+                ++i;
+            }
+        } catch (RuntimeException ex) {
+            // 脚本可能已经执行, 只有优惠券码仍然记录在预取 hash 中时才放回码池
+            if (null != buffered) {
+                codeBuffer.release(template.getId(), buffered);
+            }
+            throw ex;
+        }
+        log.info("Acquire coupon: {}, {}, {}", userId, templateId, result);
+
+        // 没有领取成功时, 预取的优惠券码放回本地缓冲
+        if (null != buffered && (null == result || "MISS".equals(result) || "LIMIT".equals(result))) {
+            codeBuffer.putBack(template.getId(), buffered);
+        }
+        if (null == result || "MISS".equals(result)) {
+            return null;
+        }
+        if ("LIMIT".equals(result)) {
+            throw new CouponException("Exceed template assign limitation");
+        }
+        if ("EMPTY".equals(result)) {
+            throw new CouponException("Can not acquire coupon code");
+        }
+
+        removeKnownEmpty(userId, Collections.singletonList(CouponStatus.USABLE.getCode()));
+        nearCache.invalidate(userId, Collections.singletonList(CouponStatus.USABLE.getCode()));
+
+        Coupon coupon = CouponCodec.decode(result);
+        coupon.setTemplateSDK(template);
+        // 预取的优惠券码已经被其他节点放回码池, 脚本改为从码池中取出, 本地的这个码直接丢弃
+        if (null != buffered && !buffered.equals(coupon.getCouponCode())) {
+            log.warn("Buffered coupon code is reclaimed by other node: {}, {}", templateId, buffered);
+        }
+
+        return coupon;
+    }
+
+    /**
+     * id 序列落后于数据库时, 以数据库中的最大 id 为起点重新建立
+     * @param idFloor 数据库中已有的最大优惠券 id
+     */
+    @Override
+    public void reseedCouponIdSequence(long idFloor) {
+
+        Long sequence = redisTemplate.execute(
+                RESEED_SCRIPT,
+                Collections.singletonList(Constant.RedisPrefix.COUPON_ID_SEQUENCE),
+                String.valueOf(idFloor)
+        );
+        log.warn("Reseed coupon id sequence: {}, {}", idFloor, sequence);
+    }
+
+    /**
+     * 撤销一次领取
+     * @param coupon 领取到的 {@link Coupon}
+     */
+    @Override
+    @SuppressWarnings("all")
+    public void rollbackAcquiredCoupon(Coupon coupon) {
+
+        String redisKey = status2RedisKey(CouponStatus.USABLE.getCode(), coupon.getUserId());
+        List<CouponCodePool> pools = codeBuffer.pools(coupon.getTemplateId());
+        CouponCodePool pool = pools.get(ThreadLocalRandom.current().nextInt(pools.size()));
+
         SessionCallback<Object> sessionCallback = new SessionCallback<Object>() {
             @Override
             public Object execute(RedisOperations redisOperations) throws DataAccessException {
 
-                // 1. 已使用的优惠券 cache 缓存
-                redisOperations.opsForHash().putAll(redisKeyForUsed, needCachedForUsed);
-                // 2. 可用的优惠券 cache 需要清理
-                redisOperations.opsForHash().delete(redisKeyForUsable, needCleanKey);
-                // 3. 重置过期时间
-                redisOperations.expire(redisKeyForUsable, getRandomExpirationTime(1, 2), TimeUnit.SECONDS);
-                redisOperations.expire(redisKeyForUsed, getRandomExpirationTime(1, 2), TimeUnit.SECONDS);
+                redisOperations.opsForHash().delete(redisKey, coupon.getId().toString());
+                redisOperations.opsForList().leftPush(pool.getListKey(), coupon.getCouponCode());
+                redisOperations.opsForHash().increment(pool.getMetaKey(), "issued", -1);
+                redisOperations.delete(claimKey(coupon.getUserId()));
 
                 return null;
             }
         };
-        log.info("Pipeline Execute Result: {}", JSON.toJSONString(redisTemplate.executePipelined(sessionCallback)));
-
-        return coupons.size();
+        redisTemplate.executePipelined(sessionCallback);
+        nearCache.invalidate(coupon.getUserId(), Collections.singletonList(CouponStatus.USABLE.getCode()));
+        log.warn("Rollback acquired coupon: {}", CouponCodec.encode(coupon));
     }
 
     /**
-     * 将过期的优惠券加入到 Cache 中
+     * 按照配置的存储格式编码优惠券
      */
-    @SuppressWarnings("all")
-    private Integer addCouponToCacheForExpired(Long userId, List<Coupon> coupons) throws CouponException {
-
-        // status 是 EXPIRED, 代表是已有的优惠券过期了, 影响到两个 Cache
-        // USABLE, EXPIRED
+    private String encode(Coupon coupon) {
+        return compact ? CouponCodec.encode(coupon) : JSON.toJSONString(coupon);
+    }
 
-        log.debug("Add coupon to cache for expired");
+    /**
+     * 紧凑格式不包含模板信息, 读取时按 templateId 一次批量关联
+     * @return 是否全部关联成功
+     */
+    private boolean fillTemplateSDK(List<Coupon> coupons) {
+
+        Set<Integer> templateIds = coupons.stream()
+                .filter(c -> null == c.getTemplateSDK() && null != c.getTemplateId())
+                .map(Coupon::getTemplateId)
+                .collect(Collectors.toSet());
+        if (templateIds.isEmpty()) {
+            return true;
+        }
 
-        // 最终需要保存的 Cache
-        Map<String, String> needCachedForExpired = new HashMap<>(coupons.size());
+        Map<Integer, CouponTemplateSDK> id2TemplateSDK = templateReplica.findIds2Template(templateIds);
+        coupons.stream()
+                .filter(c -> null == c.getTemplateSDK() && null != c.getTemplateId())
+                .forEach(c -> c.setTemplateSDK(id2TemplateSDK.get(c.getTemplateId())));
 
-        String redisKeyForUsable = status2RedisKey(CouponStatus.USABLE.getCode(), userId);
-        String redisKeyForExpired = status2RedisKey(CouponStatus.EXPIRED.getCode(), userId);
+        return id2TemplateSDK.keySet().containsAll(templateIds);
+    }
 
-        List<Coupon> curUsableCoupons = getCachedCoupons(userId, CouponStatus.USABLE.getCode());
-        List<Coupon> curExpiredCoupons = getCachedCoupons(userId, CouponStatus.EXPIRED.getCode());
+    /**
+     * 重置可用优惠券缓存的过期时间: 新鲜标记在软过期时间后过期, 缓存本身在硬过期时间后过期
+     */
+    @SuppressWarnings("all")
+    private void expireUsable(RedisOperations redisOperations, Long userId) {
 
-        // 当前可用的优惠券个数一定大于1
-        assert curUsableCoupons.size() > coupons.size();
+        long softSeconds = getRandomExpirationTime(1, 2);
+        redisOperations.expire(
+                status2RedisKey(CouponStatus.USABLE.getCode(), userId),
+                cacheRefresher.hardSeconds(softSeconds),
+                TimeUnit.SECONDS
+        );
+        markUsableFresh(redisOperations, userId, softSeconds);
+    }
 
-        coupons.forEach(c -> needCachedForExpired.put(
-                c.getId().toString(),
-                JSON.toJSONString(c)
-        ));
+    /**
+     * 写入可用优惠券缓存的新鲜标记
+     */
+    @SuppressWarnings("all")
+    private void markUsableFresh(RedisOperations redisOperations, Long userId, long softSeconds) {
 
-        // 校验当前的优惠券参数是否与 Cache 中的匹配
-        List<Integer> curUsableIds = curUsableCoupons.stream()
-                .map(Coupon::getId)
-                .collect(Collectors.toList());
-        List<Integer> paramIds = coupons.stream()
-                .map(Coupon::getId)
-                .collect(Collectors.toList());
-        if (CollectionUtils.isSubCollection(paramIds, curUsableIds)) {
-            log.error("CurCoupons not equals to cahce: {}, {}, {}",
-                    userId, JSON.toJSONString(curUsableIds), JSON.toJSONString(paramIds));
-            throw new CouponException("CurCoupon not equals to cache");
+        if (cacheRefresher.isEnabled()) {
+            redisOperations.opsForValue().set(freshKey(userId), "1", softSeconds, TimeUnit.SECONDS);
         }
+    }
 
-        List<String> needCleanKey = paramIds.stream()
-                .map(Object::toString)
-                .collect(Collectors.toList());
+    /**
+     * 从 Redis 中移出已知为空的记录
+     */
+    @SuppressWarnings("all")
+    private void removeKnownEmpty(Long userId, List<Integer> status) {
 
-        SessionCallback<Objects> sessionCallback = new SessionCallback<Objects>() {
+        SessionCallback<Object> sessionCallback = new SessionCallback<Object>() {
             @Override
-            public Objects execute(RedisOperations redisOperations) throws DataAccessException {
+            public Object execute(RedisOperations redisOperations) throws DataAccessException {
 
-                // 1. 已过期的优惠券 cache 缓存
-                redisOperations.opsForHash().putAll(
-                        redisKeyForExpired, needCachedForExpired
-                );
-                // 2. 可用的优惠券 cache 需要清理
-                redisOperations.opsForHash().delete(
-                        redisKeyForUsable, needCleanKey.toArray()
-                );
-                // 3. 重置过期时间
-                redisOperations.expire(
-                        redisKeyForUsable,
-                        getRandomExpirationTime(1, 2),
-                        TimeUnit.SECONDS
-                );
-                redisOperations.expire(
-                        redisKeyForExpired,
-                        getRandomExpirationTime(1, 2),
-                        TimeUnit.SECONDS
-                );
+                status.forEach(s -> redisOperations.delete(emptyKey(s, userId)));
 
                 return null;
             }
         };
-        log.info("Pipeline executes result: {}",
-                JSON.toJSONString(redisTemplate.executePipelined(sessionCallback)));
+        redisTemplate.executePipelined(sessionCallback);
+    }
 
-        return coupons.size();
+    /**
+     * 用户在该状态下已知没有优惠券的标记的 Redis Key
+     */
+    private String emptyKey(Integer status, Long userId) {
+        return String.format("%s%s_%s", Constant.RedisPrefix.USER_COUPON_EMPTY, status, userId);
+    }
+
+    /**
+     * 可用优惠券缓存新鲜标记的 Redis Key
+     */
+    private String freshKey(Long userId) {
+        return String.format("%s%s", Constant.RedisPrefix.USER_COUPON_USABLE_FRESH, userId);
+    }
+
+    /**
+     * 用户领取计数的 Redis Key
+     */
+    private String claimKey(Long userId) {
+        return String.format("%s%s", Constant.RedisPrefix.USER_COUPON_CLAIM, userId);
+    }
+
+    /**
+     * 缓存先于数据库变化, 递增待同步版本
+     */
+    @SuppressWarnings("all")
+    private void markPending(RedisOperations redisOperations, Long userId) {
+
+        redisOperations.opsForValue().increment(pendingKey(userId), 1);
+        redisOperations.expire(pendingKey(userId), cacheRefresher.getPendingSeconds(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * 可用优惠券缓存待同步版本的 Redis Key
+     */
+    private String pendingKey(Long userId) {
+        return String.format("%s%s", Constant.RedisPrefix.USER_COUPON_MOVE_PENDING, userId);
     }
 
     /**
@@ -1,6 +1,9 @@
 package com.zkw.coupon.service.impl;
 
 import com.alibaba.fastjson.JSON;
+import com.zkw.coupon.cache.CouponCacheRefresher;
+import com.zkw.coupon.cache.CouponLoadSingleFlight;
+import com.zkw.coupon.cache.TemplateReplica;
 import com.zkw.coupon.constant.Constant;
 import com.zkw.coupon.constant.CouponStatus;
 import com.zkw.coupon.dao.CouponDao;
@@ -14,8 +17,7 @@ import com.zkw.coupon.vo.*;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.MapUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.stereotype.Service;
 
@@ -44,18 +46,30 @@ public class UserServiceImpl implements IUserService {
     // 模板微服务客户端
     private final TemplateClient templateClient;
 
+    // 可用优惠券模板的本地副本
+    private final TemplateReplica templateReplica;
+
     // 结算微服务客户端
     private final SettlementClient settlementClient;
 
     // Kafka 客户端
     private final KafkaTemplate<String, String> kafkaTemplate;
 
-    public UserServiceImpl(CouponDao couponDao, IRedisService redisService, TemplateClient templateClient, SettlementClient settlementClient, KafkaTemplate<String, String> kafkaTemplate) {
+    // 缓存未命中时的合并加载
+    private final CouponLoadSingleFlight singleFlight;
+
+    // 可用优惠券缓存的后台刷新
+    private final CouponCacheRefresher cacheRefresher;
+
+    public UserServiceImpl(CouponDao couponDao, IRedisService redisService, TemplateClient templateClient, TemplateReplica templateReplica, SettlementClient settlementClient, KafkaTemplate<String, String> kafkaTemplate, CouponLoadSingleFlight singleFlight, CouponCacheRefresher cacheRefresher) {
         this.couponDao = couponDao;
         this.redisService = redisService;
         this.templateClient = templateClient;
+        this.templateReplica = templateReplica;
         this.settlementClient = settlementClient;
         this.kafkaTemplate = kafkaTemplate;
+        this.singleFlight = singleFlight;
+        this.cacheRefresher = cacheRefresher;
     }
 
     /**
@@ -73,31 +87,20 @@ public class UserServiceImpl implements IUserService {
         if (CollectionUtils.isNotEmpty(curCached)) {
             log.debug("Coupon cache is not empty: {}, {}", userId, status);
             preTarget = curCached;
+            // 缓存已经软过期时直接返回, 在后台重新加载
+            cacheRefresher.refreshIfStale(userId, status, () -> refreshCouponsFromDb(userId, status));
         } else {
-            log.debug("Coupon cache is empty, get coupon from db: {}, {}", userId, status);
-            List<Coupon> dbCoupons = couponDao.findAllByUserIdAndStatus(userId, CouponStatus.of(status));
+            // 同一个用户和状态的并发未命中合并为一次加载
+            preTarget = singleFlight.load(
+                    userId, status,
+                    () -> loadCouponsFromDb(userId, status),
+                    () -> redisService.getCachedCoupons(userId, status)
+            );
 
             // 如果数据库中没有记录, 直接返回就可以, Cache 中已经加入了一张无效的优惠券
-            if (CollectionUtils.isEmpty(dbCoupons)) {
-                log.debug("Current user does not have coupon: {}, {}", userId, status);
-                return dbCoupons;
+            if (CollectionUtils.isEmpty(preTarget)) {
+                return Collections.emptyList();
             }
-
-            //填充 dbCoupons 的 templateSDK 字段
-            Map<Integer, CouponTemplateSDK> id2TemplateSDK =
-                    templateClient.findIds2Template(
-                            dbCoupons.stream()
-                                    .map(Coupon::getTemplateId)
-                                    .collect(Collectors.toList())
-                    ).getData();
-            dbCoupons.forEach(
-                    dc -> dc.setTemplateSDK(id2TemplateSDK.get(dc.getTemplateId()))
-            );
-
-            // 数据库中存在记录
-            preTarget = dbCoupons;
-            // 将记录写入 Cache
-            redisService.addCouponToCache(userId, preTarget, status);
         }
 
         // 将无效优惠券剔除
@@ -129,6 +132,68 @@ public class UserServiceImpl implements IUserService {
         return preTarget;
     }
 
+    /**
+     * 从数据库加载用户的优惠券并写入缓存, 没有记录时写入一张无效的优惠券, 解决缓存穿透问题
+     */
+    private List<Coupon> loadCouponsFromDb(Long userId, Integer status) throws CouponException {
+
+        log.debug("Coupon cache is empty, get coupon from db: {}, {}", userId, status);
+        List<Coupon> dbCoupons = findCouponsFromDb(userId, status);
+
+        if (CollectionUtils.isEmpty(dbCoupons)) {
+            log.debug("Current user does not have coupon: {}, {}", userId, status);
+            redisService.saveEmptyCouponListToCache(userId, Collections.singletonList(status));
+            return dbCoupons;
+        }
+
+        // 将记录写入 Cache, 数据库中的记录已经是目标状态, 不能按照状态迁移写入
+        redisService.reloadCouponsToCache(userId, dbCoupons, status);
+
+        return dbCoupons;
+    }
+
+    /**
+     * 缓存软过期之后在后台从数据库重新加载, 整体替换缓存
+     * 缓存先于数据库变化之后(待同步版本存在), 数据库中的记录可能落后于缓存, 这时不刷新, 租约过期之后会再次触发
+     */
+    private List<Coupon> refreshCouponsFromDb(Long userId, Integer status) throws CouponException {
+
+        String version = redisService.getPendingVersion(userId);
+        if (null != version) {
+            log.info("Coupon cache has pending changes, skip refresh: {}, {}, {}", userId, status, version);
+            return Collections.emptyList();
+        }
+
+        List<Coupon> dbCoupons = findCouponsFromDb(userId, status);
+        redisService.replaceCouponsInCache(userId, dbCoupons, status, version);
+
+        return dbCoupons;
+    }
+
+    /**
+     * 从数据库查询用户的优惠券, 并关联模板信息
+     */
+    private List<Coupon> findCouponsFromDb(Long userId, Integer status) {
+
+        List<Coupon> dbCoupons = couponDao.findAllByUserIdAndStatus(userId, CouponStatus.of(status));
+        if (CollectionUtils.isEmpty(dbCoupons)) {
+            return Collections.emptyList();
+        }
+
+        //填充 dbCoupons 的 templateSDK 字段
+        Map<Integer, CouponTemplateSDK> id2TemplateSDK =
+                templateReplica.findIds2Template(
+                        dbCoupons.stream()
+                                .map(Coupon::getTemplateId)
+                                .collect(Collectors.toSet())
+                );
+        dbCoupons.forEach(
+                dc -> dc.setTemplateSDK(id2TemplateSDK.get(dc.getTemplateId()))
+        );
+
+        return dbCoupons;
+    }
+
     /**
      * 根据用户 id 查找当前可以领取的优惠券模板
      * @param userId 用户 id
@@ -138,109 +203,111 @@ public class UserServiceImpl implements IUserService {
     public List<CouponTemplateSDK> findAvailableTemplate(Long userId) throws CouponException {
 
         long curTime = new Date().getTime();
-        List<CouponTemplateSDK> templateSDKS = templateClient.findAllUsableTemplate().getData();
+        // 本地副本还没有加载时才调用模板微服务
+        List<CouponTemplateSDK> templateSDKS = templateReplica.isReady()
+                ? templateReplica.findAll()
+                : templateClient.findAllUsableTemplate().getData();
 
-        log.debug("Find all template(from TemplateClient) count: {}",
-                templateSDKS.size());
+        log.debug("Find all template(ready: {}) count: {}",
+                templateReplica.isReady(), templateSDKS.size());
 
         // 过滤过期的优惠券模板
         templateSDKS = templateSDKS.stream().filter(t -> t.getRule().getExpiration().getDeadline() > curTime)
                 .collect(Collectors.toList());
         log.info("Find usable template count: {}", templateSDKS.size());
 
-        // key 是 templateId
-        // value 中的 left 是 Template limitation, right 是优惠券模板
-        Map<Integer, Pair<Integer, CouponTemplateSDK>> limit2Template = new HashMap<>(templateSDKS.size());
-
-        templateSDKS.forEach(t -> limit2Template.put(t.getId(), Pair.of(t.getRule().getLimitation(), t)));
-
-        List<CouponTemplateSDK> result = new ArrayList<>(limit2Template.size());
-        List<Coupon> userUsableCoupons = findCouponsByStatus(userId, CouponStatus.USABLE.getCode());
-
-        log.debug("Current user has usable coupons: {}, {}", userId, userUsableCoupons.size());
-
-        // key 是 TemplateId
-        Map<Integer, List<Coupon>> templateId2Coupons = userUsableCoupons.stream()
-                .collect(Collectors.groupingBy(Coupon::getTemplateId));
+        // key 是 TemplateId, value 是用户已领取的可用优惠券个数
+        Map<Integer, Integer> claimCounts = findClaimCounts(userId);
+        log.debug("Current user claim counts: {}, {}", userId, claimCounts);
 
         // 根据 Template 的 Rule 判断是否可以领取优惠券模板
-        limit2Template.forEach((k, v) -> {
-
-            int limitation = v.getLeft();
-            CouponTemplateSDK templateSDK = v.getRight();
-
-            if (templateId2Coupons.containsKey(k) && templateId2Coupons.get(k).size() >= limitation) {
-                return;
-            }
-            result.add(templateSDK);
-        });
-
-        return result;
+        return templateSDKS.stream()
+                .filter(t -> claimCounts.getOrDefault(t.getId(), 0) < t.getRule().getLimitation())
+                .collect(Collectors.toList());
     }
 
     /**
      * 用户领取优惠券
-     * 1. 从 TemplateClient 拿到对应的优惠券, 并检查是否过期
-     * 2. 根据 limitation 判断用户是否可以领取
-     * 3. save to db
-     * 4. 填充 CouponTemplateSDK
-     * 5. save to cache
+     * 1. 从本地模板副本(副本中没有时从 TemplateClient)拿到对应的优惠券模板
+     * 2. 在一次 Redis 调用中校验 limitation、取出优惠券码、分配 id 并写入缓存, 同一用户的并发领取不会超过上限
+     * 3. save to db, 失败时撤销 Redis 中的领取
      * @param request {@link AcquireTemplateRequest}
      * @return {@link Coupon}
      */
     @Override
     public Coupon acquireTemplate(AcquireTemplateRequest request) throws CouponException {
 
-        Map<Integer, CouponTemplateSDK> id2Template = templateClient.findIds2Template(
-                Collections.singletonList(request.getTemplateSDK().getId())
-        ).getData();
+        Integer templateId = request.getTemplateSDK().getId();
+        Map<Integer, CouponTemplateSDK> id2Template = templateReplica.findIds2Template(
+                Collections.singletonList(templateId)
+        );
 
         // 优惠券模板是需要存在的
         if (id2Template.size() <= 0) {
-            log.error("Can not acquire template from TemplateClient: {}",
-                    request.getTemplateSDK().getId());
+            log.error("Can not acquire template from TemplateClient: {}", templateId);
             throw new CouponException("Can not acquire template from TemplateClient");
         }
+        // 以服务端的模板为准, 不信任请求中的 limitation
+        CouponTemplateSDK template = id2Template.get(templateId);
 
-        // 用户是否可以领取这张优惠券
-        List<Coupon> userUsableCoupons = findCouponsByStatus(request.getUserId(), CouponStatus.USABLE.getCode());
-        Map<Integer, List<Coupon>> templateId2Coupons = userUsableCoupons.stream()
-                .collect(Collectors.groupingBy(Coupon::getTemplateId));
+        // 主键冲突说明 Redis 中的 id 序列落后于数据库, 重新建立序列之后重试一次
+        for (int attempt = 0; ; ++attempt) {
 
-        if (templateId2Coupons.containsKey(request.getTemplateSDK().getId())
-                && templateId2Coupons.get(request.getTemplateSDK().getId()).size()
-                >= request.getTemplateSDK().getRule().getLimitation()) {
-            log.error("Exceed template assign limitation: {}", request.getTemplateSDK().getId());
-            throw new CouponException("Exceed template assign limitation");
+            Coupon newCoupon = acquireCoupon(request.getUserId(), template);
+            try {
+                couponDao.insertWithId(
+                        newCoupon.getId(), newCoupon.getTemplateId(), newCoupon.getUserId(),
+                        newCoupon.getCouponCode(), newCoupon.getAssignTime(), newCoupon.getStatus().getCode()
+                );
+                return newCoupon;
+            } catch (DataIntegrityViolationException ex) {
+                log.warn("Acquired coupon conflicts with db: {}, {}", newCoupon.getId(), ex.getMessage());
+                redisService.rollbackAcquiredCoupon(newCoupon);
+                if (attempt > 0) {
+                    throw new CouponException("Save acquired coupon error");
+                }
+                redisService.reseedCouponIdSequence(couponDao.findMaxId());
+            } catch (RuntimeException ex) {
+                log.error("Save acquired coupon error: {}, {}", newCoupon.getId(), ex.getMessage());
+                redisService.rollbackAcquiredCoupon(newCoupon);
+                throw new CouponException("Save acquired coupon error");
+            }
         }
+    }
 
-        // 尝试去获取优惠券码
-        String couponCode = redisService.tryToAcquireCouponCodeFromCache(request.getTemplateSDK().getId());
-        if (StringUtils.isEmpty(couponCode)) {
-            log.error("Can not acquire coupon code: {}",
-                    request.getTemplateSDK().getId());
-            throw new CouponException("Can not acquire coupon code");
+    /**
+     * 在 Redis 中领取优惠券, 用户的可用优惠券缓存或领取计数还没有建立时, 建立之后重试一次
+     * id 序列不存在时(例如被淘汰)才从数据库读取当前最大 id
+     */
+    private Coupon acquireCoupon(Long userId, CouponTemplateSDK template) throws CouponException {
+
+        Coupon newCoupon = redisService.acquireCoupon(userId, template, couponDao::findMaxId);
+        if (null == newCoupon) {
+            // 本地缓存的副本可能比 Redis 中的缓存活得更久, 失效之后重试才会回到 Redis 和数据库
+            redisService.invalidateClaimCounts(userId);
+            findClaimCounts(userId);
+            newCoupon = redisService.acquireCoupon(userId, template, couponDao::findMaxId);
+        }
+        if (null == newCoupon) {
+            log.error("Can not load user usable coupons: {}", userId);
+            throw new CouponException("Can not load user usable coupons");
         }
 
-        Coupon newCoupon = new Coupon(
-                request.getTemplateSDK().getId(),
-                request.getUserId(),
-                couponCode,
-                CouponStatus.USABLE
-        );
-        newCoupon = couponDao.save(newCoupon);
+        return newCoupon;
+    }
 
-        // 填充 Coupon 对象的 CouponTemplateSDK, 一定要在放入缓存之前去填充
-        newCoupon.setTemplateSDK(request.getTemplateSDK());
+    /**
+     * 用户每个模板已领取的可用优惠券个数, 可用优惠券缓存还没有加载时先从数据库加载
+     */
+    private Map<Integer, Integer> findClaimCounts(Long userId) throws CouponException {
 
-        // 放入缓存中
-        redisService.addCouponToCache(
-                request.getUserId(),
-                Collections.singletonList(newCoupon),
-                CouponStatus.USABLE.getCode()
-        );
+        Map<Integer, Integer> claimCounts = redisService.getClaimCounts(userId);
+        if (null == claimCounts) {
+            findCouponsByStatus(userId, CouponStatus.USABLE.getCode());
+            claimCounts = redisService.getClaimCounts(userId);
+        }
 
-        return newCoupon;
+        return null == claimCounts ? Collections.emptyMap() : claimCounts;
     }
 
     /**
@@ -0,0 +1,79 @@
+-- 用户领取优惠券: 校验领取上限、取出优惠券码、分配优惠券 id、写入用户可用优惠券缓存, 在一次调用中完成
+-- 每次只访问码池的一个分片, 分片由调用方选择, 分片为空时调用方换一个分片重试
+-- 脚本同时访问用户、全局 id 序列和节点预取的 key, 这些 key 不在同一个 slot, 只能在单节点 Redis 上执行
+-- KEYS[1]: 用户可用优惠券 key, KEYS[2]: 分片的优惠券码列表 key, KEYS[3]: 分片的元信息 key,
+-- KEYS[4]: 二进制优惠券码 key(不是二进制格式时与 KEYS[2] 相同), KEYS[5]: 优惠券 id 序列 key,
+-- KEYS[6]: 用户领取计数 key, KEYS[7]: 节点的预取 hash key, KEYS[8]: 用户可用优惠券缓存的待同步标记 key
+-- ARGV[1]: 模板 id, ARGV[2]: 领取上限, ARGV[3]: 用户 id, ARGV[4]: 领取时间(毫秒),
+-- ARGV[5]: 用户缓存的过期秒数, ARGV[6]: id 序列不存在时的起点, 为空时不建立序列, ARGV[7]: 是否二进制格式(1/0),
+-- ARGV[8]: 节点预取的优惠券码, 为空或者已经不在节点的预取 hash 中(被其他节点放回码池)时从分片中取出,
+-- ARGV[9]: 待同步标记的过期时间(秒)
+-- 领取成功时在 KEYS[3] 中累加 issued, 节点预取的码也在这里计入, 各个分片的 issued 求和即为模板的发放个数
+-- 成功时返回紧凑格式的优惠券(状态为可用); 用户缓存或领取计数未建立返回 MISS, 超过领取上限返回 LIMIT, 分片为空返回 EMPTY,
+-- id 序列不存在并且没有传入起点返回 NOSEQ, 调用方从数据库读取当前最大 id 之后重试
+if redis.call('EXISTS', KEYS[1]) == 0 or redis.call('EXISTS', KEYS[6]) == 0 then
+    return 'MISS'
+end
+if ARGV[6] == '' and redis.call('EXISTS', KEYS[5]) == 0 then
+    return 'NOSEQ'
+end
+
+-- 领取计数由 claim_coupon_counts.lua 建立
+local count = tonumber(redis.call('HGET', KEYS[6], ARGV[1]) or '0')
+if count >= tonumber(ARGV[2]) then
+    return 'LIMIT'
+end
+
+local code
+if ARGV[8] ~= '' and redis.call('HDEL', KEYS[7], ARGV[8]) == 1 then
+    -- 节点预取的优惠券码, 不再访问码池
+    code = ARGV[8]
+else
+    -- 取出优惠券码, 二进制格式先读取二进制串, 再读取列表(放回的码)
+    if ARGV[7] == '1' then
+        local len = redis.call('STRLEN', KEYS[4])
+        if len > 0 then
+            local offset = redis.call('HINCRBY', KEYS[3], 'offset', 8) - 8
+            if offset + 8 <= len then
+                local b1, b2, b3, b4, b5, b6, b7, b8 = string.byte(redis.call('GETRANGE', KEYS[4], offset, offset + 7), 1, 8)
+                local high = ((b1 * 256 + b2) * 256 + b3) * 256 + b4
+                local low = ((b5 * 256 + b6) * 256 + b7) * 256 + b8
+                if offset + 8 == len then
+                    redis.call('DEL', KEYS[4])
+                    redis.call('HSET', KEYS[3], 'offset', 0)
+                end
+                code = string.format('%09d%09d', high, low)
+            else
+                redis.call('DEL', KEYS[4])
+                redis.call('HSET', KEYS[3], 'offset', 0)
+            end
+        end
+    end
+    if not code then
+        code = redis.call('LPOP', KEYS[2])
+    end
+    if not code then
+        return 'EMPTY'
+    end
+end
+redis.call('HINCRBY', KEYS[3], 'issued', 1)
+
+-- 分配优惠券 id 并写入用户可用优惠券缓存
+if ARGV[6] ~= '' then
+    -- 序列不存在或者落后于数据库时以数据库中的最大 id 为起点
+    local floor = tonumber(ARGV[6])
+    if tonumber(redis.call('GET', KEYS[5]) or '0') < floor then
+        redis.call('SET', KEYS[5], floor)
+    end
+end
+local id = redis.call('INCR', KEYS[5])
+local coupon = 'C1|' .. id .. '|' .. ARGV[1] .. '|' .. ARGV[3] .. '|' .. code .. '|' .. ARGV[4] .. '|1'
+redis.call('HSET', KEYS[1], id, coupon)
+redis.call('EXPIRE', KEYS[1], ARGV[5])
+redis.call('HINCRBY', KEYS[6], ARGV[1], 1)
+redis.call('EXPIRE', KEYS[6], ARGV[5])
+-- 调用方随后才写入数据库, 写入之前不能用数据库中的记录刷新缓存
+redis.call('INCR', KEYS[8])
+redis.call('EXPIRE', KEYS[8], ARGV[9])
+
+return coupon
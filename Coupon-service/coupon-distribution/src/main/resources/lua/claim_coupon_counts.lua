@@ -0,0 +1,49 @@
+-- 获取用户每个模板已领取的可用优惠券个数, 计数不存在时从用户可用优惠券缓存中统计一次
+-- KEYS[1]: 用户可用优惠券 key, KEYS[2]: 用户领取计数 key
+-- 返回计数剩余的有效期(毫秒, -1 表示不过期)和计数 hash 的所有字段, 字段 -1 是标记计数已建立的占位; 用户缓存未加载时返回空列表
+
+-- 计数与用户可用优惠券缓存中较早过期的一个
+local function remaining()
+    local ttl = -1
+    for _, key in ipairs(KEYS) do
+        local pttl = redis.call('PTTL', key)
+        if pttl > 0 and (ttl < 0 or pttl < ttl) then
+            ttl = pttl
+        end
+    end
+    return ttl
+end
+
+local function result()
+    local fields = redis.call('HGETALL', KEYS[2])
+    table.insert(fields, 1, remaining())
+    return fields
+end
+
+if redis.call('EXISTS', KEYS[2]) == 1 then
+    return result()
+end
+if redis.call('EXISTS', KEYS[1]) == 0 then
+    return {}
+end
+
+-- 兼容紧凑格式和 JSON 格式
+local counts = {}
+for _, value in ipairs(redis.call('HVALS', KEYS[1])) do
+    local templateId = string.match(value, '^C1|%d+|(%d+)|') or string.match(value, '"templateId":(%d+)[,}]')
+    if templateId then
+        counts[templateId] = (counts[templateId] or 0) + 1
+    end
+end
+
+redis.call('HSET', KEYS[2], '-1', 0)
+for templateId, count in pairs(counts) do
+    redis.call('HSET', KEYS[2], templateId, count)
+end
+-- 与用户可用优惠券缓存同时过期
+local ttl = redis.call('PTTL', KEYS[1])
+if ttl > 0 then
+    redis.call('PEXPIRE', KEYS[2], ttl)
+end
+
+return result()
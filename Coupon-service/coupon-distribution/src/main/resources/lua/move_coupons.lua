@@ -0,0 +1,23 @@
+-- 把用户的可用优惠券移动到已使用或已过期缓存, 只检查本次移动的优惠券是否都在可用优惠券缓存中
+-- KEYS[1]: 可用优惠券缓存 key, KEYS[2]: 目标状态缓存 key, KEYS[3]: 可用优惠券缓存的新鲜标记 key, KEYS[4]: 待同步标记 key
+-- ARGV[1]: 可用优惠券缓存的过期时间(秒), ARGV[2]: 新鲜标记的过期时间(秒), 0 表示不写入,
+-- ARGV[3]: 目标状态缓存的过期时间(秒), ARGV[4]: 待同步标记的过期时间(秒), ARGV[5..]: 优惠券 id 和序列化的优惠券交替出现
+-- 返回 OK, 有优惠券不在可用优惠券缓存中时不做任何修改, 返回第一个不存在的优惠券 id
+for i = 5, #ARGV, 2 do
+    if redis.call('HEXISTS', KEYS[1], ARGV[i]) == 0 then
+        return ARGV[i]
+    end
+end
+for i = 5, #ARGV, 2 do
+    redis.call('HSET', KEYS[2], ARGV[i], ARGV[i + 1])
+    redis.call('HDEL', KEYS[1], ARGV[i])
+end
+redis.call('EXPIRE', KEYS[1], ARGV[1])
+if ARGV[2] ~= '0' then
+    redis.call('SET', KEYS[3], '1', 'EX', ARGV[2])
+end
+redis.call('EXPIRE', KEYS[2], ARGV[3])
+-- 数据库中的状态由消息异步更新, 同步之前不能用数据库中的记录刷新缓存
+redis.call('INCR', KEYS[4])
+redis.call('EXPIRE', KEYS[4], ARGV[4])
+return 'OK'
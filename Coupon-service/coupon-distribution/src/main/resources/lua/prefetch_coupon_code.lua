@@ -0,0 +1,46 @@
+-- 分发节点从码池的一个分片中批量取出优惠券码, 同时记录到节点的预取 hash 中, 节点异常退出后可以放回码池
+-- 分片与节点的预取 hash 不在同一个 slot, 只能在单节点 Redis 上执行
+-- KEYS[1]: 分片的优惠券码列表 key, KEYS[2]: 分片的元信息 key,
+-- KEYS[3]: 二进制优惠券码 key(不是二进制格式时与 KEYS[1] 相同), KEYS[4]: 节点的预取 hash key
+-- ARGV[1]: 取出的个数, ARGV[2]: 是否二进制格式(1/0), ARGV[3]: 模板 id
+-- 预取的优惠券码只是暂存在节点上, 用户领取时才计入 issued; 返回取出的优惠券码列表, 个数不足时调用方继续尝试其他分片
+local count = tonumber(ARGV[1])
+local codes = {}
+
+if ARGV[2] == '1' then
+    local len = redis.call('STRLEN', KEYS[3])
+    if len > 0 then
+        local offset = tonumber(redis.call('HGET', KEYS[2], 'offset') or '0')
+        local n = math.min(count, math.floor((len - offset) / 8))
+        if n > 0 then
+            local bytes = redis.call('GETRANGE', KEYS[3], offset, offset + n * 8 - 1)
+            for i = 0, n - 1 do
+                local b1, b2, b3, b4, b5, b6, b7, b8 = string.byte(bytes, i * 8 + 1, i * 8 + 8)
+                local high = ((b1 * 256 + b2) * 256 + b3) * 256 + b4
+                local low = ((b5 * 256 + b6) * 256 + b7) * 256 + b8
+                codes[#codes + 1] = string.format('%09d%09d', high, low)
+            end
+            offset = offset + n * 8
+        end
+        -- 二进制串已经取完时释放
+        if offset + 8 > len then
+            redis.call('DEL', KEYS[3])
+            offset = 0
+        end
+        redis.call('HSET', KEYS[2], 'offset', offset)
+    end
+end
+
+while #codes < count do
+    local code = redis.call('LPOP', KEYS[1])
+    if not code then
+        break
+    end
+    codes[#codes + 1] = code
+end
+
+for _, code in ipairs(codes) do
+    redis.call('HSET', KEYS[4], code, ARGV[3])
+end
+
+return codes
@@ -0,0 +1,18 @@
+-- 读取用户的优惠券缓存, 已知没有优惠券时不读取缓存的内容
+-- KEYS[1]: 已知为空的标记 key, KEYS[2]: 用户优惠券缓存 key, KEYS[3]: 可用优惠券缓存的新鲜标记 key
+-- ARGV[1]: 是否检查新鲜标记(1/0), ARGV[2]: 刷新租约的有效期(秒)
+-- 已知没有优惠券(标记和无效优惠券的缓存都存在)时返回 {EMPTY};
+-- 否则第一个元素是 STALE(缓存已经软过期, 由本次读取拿到了刷新租约)或 FRESH, 之后是缓存的所有值, 缓存不存在时只有第一个元素
+if redis.call('EXISTS', KEYS[1]) == 1 and redis.call('EXISTS', KEYS[2]) == 1 then
+    return {'EMPTY'}
+end
+
+local values = redis.call('HVALS', KEYS[2])
+local state = 'FRESH'
+-- 新鲜标记不存在时写入一个短期的刷新租约, 写入成功说明由本次读取负责刷新
+if ARGV[1] == '1' and #values > 0 and redis.call('SET', KEYS[3], '0', 'EX', ARGV[2], 'NX') then
+    state = 'STALE'
+end
+table.insert(values, 1, state)
+
+return values
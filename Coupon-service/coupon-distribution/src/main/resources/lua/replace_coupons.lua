@@ -0,0 +1,29 @@
+-- 用数据库中的记录整体替换用户的优惠券缓存(后台刷新), 新的记录已经由调用方写入临时 key
+-- KEYS[1]: 临时 key, KEYS[2]: 用户优惠券缓存 key, KEYS[3]: 待同步标记 key, KEYS[4]: 已知为空的标记 key,
+-- KEYS[5]: 用户领取计数 key, KEYS[6]: 可用优惠券缓存的新鲜标记 key
+-- ARGV[1]: 读取数据库之前的待同步标记(版本), 为空表示不存在, ARGV[2]: 缓存的过期时间(秒),
+-- ARGV[3]: 新鲜标记的过期时间(秒), 0 表示不写入
+-- 返回 OK; 读取数据库之后缓存又先于数据库变化过(版本不同)时不做替换, 返回 PENDING; 临时 key 已经过期返回 MISS
+if (redis.call('GET', KEYS[3]) or '') ~= ARGV[1] then
+    redis.call('DEL', KEYS[1])
+    return 'PENDING'
+end
+if redis.call('EXISTS', KEYS[1]) == 0 then
+    return 'MISS'
+end
+
+redis.call('RENAME', KEYS[1], KEYS[2])
+redis.call('EXPIRE', KEYS[2], ARGV[2])
+-- 只有无效的优惠券时记录为已知为空, 与缓存同时过期
+if redis.call('HLEN', KEYS[2]) == 1 and redis.call('HEXISTS', KEYS[2], '-1') == 1 then
+    redis.call('SET', KEYS[4], '1', 'EX', ARGV[2])
+else
+    redis.call('DEL', KEYS[4])
+end
+-- 可用优惠券变化后, 领取计数需要重新统计
+redis.call('DEL', KEYS[5])
+if ARGV[3] ~= '0' then
+    redis.call('SET', KEYS[6], '1', 'EX', ARGV[3])
+end
+
+return 'OK'
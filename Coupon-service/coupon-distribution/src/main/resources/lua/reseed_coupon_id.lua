@@ -0,0 +1,10 @@
+-- 优惠券 id 序列落后于数据库时, 以数据库中的最大 id 为起点重新建立
+-- KEYS[1]: 优惠券 id 序列 key, ARGV[1]: 数据库中的最大 id
+-- 返回重新建立之后的序列值
+local floor = tonumber(ARGV[1])
+local current = tonumber(redis.call('GET', KEYS[1]) or '0')
+if current < floor then
+    redis.call('SET', KEYS[1], floor)
+    return floor
+end
+return current
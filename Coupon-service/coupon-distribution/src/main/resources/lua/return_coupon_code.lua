@@ -0,0 +1,13 @@
+-- 把分发节点预取但没有使用的优惠券码放回码池的一个分片, 只放回仍然记录在预取 hash 中的码, 重复调用不会重复放回
+-- 预取时没有计入 issued, 放回时也不扣除
+-- KEYS[1]: 节点的预取 hash key, KEYS[2]: 分片的优惠券码列表 key
+-- ARGV: 优惠券码
+-- 返回放回的个数
+local returned = 0
+for _, code in ipairs(ARGV) do
+    if redis.call('HDEL', KEYS[1], code) == 1 then
+        redis.call('RPUSH', KEYS[2], code)
+        returned = returned + 1
+    end
+end
+return returned
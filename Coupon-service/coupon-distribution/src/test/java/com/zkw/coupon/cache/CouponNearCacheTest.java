@@ -0,0 +1,71 @@
+package com.zkw.coupon.cache;
+
+import com.zkw.coupon.constant.CouponStatus;
+import com.zkw.coupon.entity.Coupon;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 近端缓存失效代数测试
+ */
+public class CouponNearCacheTest {
+
+    private final CouponNearCache nearCache = new CouponNearCache(
+            Mockito.mock(StringRedisTemplate.class), true, 100, 30, 100, 5
+    );
+
+    private final Integer usable = CouponStatus.USABLE.getCode();
+
+    private final List<Coupon> coupons = Collections.singletonList(
+            new Coupon(10, 20001L, "100119010112345678", CouponStatus.USABLE)
+    );
+
+    @Test
+    public void testOtherUserInvalidate() {
+
+        long generation = nearCache.generation(20001L);
+        nearCache.invalidate(20002L, Collections.singletonList(usable));
+        nearCache.put(20001L, usable, coupons, generation);
+
+        Assert.assertEquals(coupons, nearCache.get(20001L, usable));
+    }
+
+    @Test
+    public void testSameUserInvalidate() {
+
+        long generation = nearCache.generation(20001L);
+        nearCache.invalidate(20001L, Collections.singletonList(usable));
+        nearCache.put(20001L, usable, coupons, generation);
+        nearCache.putEmpty(20001L, CouponStatus.USED.getCode(), generation);
+
+        Assert.assertNull(nearCache.get(20001L, usable));
+        Assert.assertFalse(nearCache.isKnownEmpty(20001L, CouponStatus.USED.getCode()));
+    }
+
+    @Test
+    public void testClaimsExpireWithRedis() throws InterruptedException {
+
+        nearCache.putClaims(20001L, Collections.singletonMap(10, 1), 20, nearCache.generation(20001L));
+        Assert.assertEquals(Integer.valueOf(1), nearCache.getClaims(20001L).get(10));
+
+        Thread.sleep(50);
+        Assert.assertNull(nearCache.getClaims(20001L));
+    }
+
+    @Test
+    public void testInvalidateUsableLocal() {
+
+        long generation = nearCache.generation(20001L);
+        nearCache.put(20001L, usable, coupons, generation);
+        nearCache.putClaims(20001L, Collections.singletonMap(10, 1), -1, generation);
+
+        nearCache.invalidateUsableLocal(20001L);
+        Assert.assertNull(nearCache.get(20001L, usable));
+        Assert.assertNull(nearCache.getClaims(20001L));
+    }
+}
@@ -0,0 +1,43 @@
+package com.zkw.coupon.serialization;
+
+import com.alibaba.fastjson.JSON;
+import com.zkw.coupon.constant.CouponStatus;
+import com.zkw.coupon.entity.Coupon;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Date;
+
+/**
+ * 优惠券存储格式测试
+ */
+public class CouponCodecTest {
+
+    @Test
+    public void testCompact() {
+
+        Coupon coupon = new Coupon(10, 20001L, "100119010112345678", CouponStatus.USED);
+        coupon.setId(3);
+        coupon.setAssignTime(new Date(1546300800000L));
+
+        String value = CouponCodec.encode(coupon);
+        Assert.assertEquals("C1|3|10|20001|100119010112345678|1546300800000|2", value);
+        Assert.assertEquals(coupon, CouponCodec.decode(value));
+    }
+
+    @Test
+    public void testInvalidCoupon() {
+
+        Coupon invalid = Coupon.invalidCoupon();
+        Assert.assertEquals(invalid, CouponCodec.decode(CouponCodec.encode(invalid)));
+    }
+
+    @Test
+    public void testLegacyJson() {
+
+        Coupon coupon = new Coupon(10, 20001L, "100119010112345678", CouponStatus.USABLE);
+        coupon.setId(3);
+
+        Assert.assertEquals(coupon, CouponCodec.decode(JSON.toJSONString(coupon)));
+    }
+}
@@ -0,0 +1,153 @@
+package com.zkw.coupon.service;
+
+import com.zkw.coupon.cache.CouponCacheRefresher;
+import com.zkw.coupon.cache.CouponLoadSingleFlight;
+import com.zkw.coupon.cache.TemplateReplica;
+import com.zkw.coupon.constant.CouponStatus;
+import com.zkw.coupon.constant.PeriodType;
+import com.zkw.coupon.dao.CouponDao;
+import com.zkw.coupon.entity.Coupon;
+import com.zkw.coupon.feign.SettlementClient;
+import com.zkw.coupon.feign.TemplateClient;
+import com.zkw.coupon.service.impl.UserServiceImpl;
+import com.zkw.coupon.vo.CouponTemplateSDK;
+import com.zkw.coupon.vo.TemplateRule;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 缓存未命中时从数据库重新加载优惠券, 以及软过期之后后台刷新的测试
+ */
+public class CouponCacheReloadTest {
+
+    private static final Long USER_ID = 20001L;
+
+    private CouponDao couponDao;
+
+    private IRedisService redisService;
+
+    private CouponCacheRefresher cacheRefresher;
+
+    private UserServiceImpl userService;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+
+        couponDao = mock(CouponDao.class);
+        redisService = mock(IRedisService.class);
+        TemplateReplica templateReplica = mock(TemplateReplica.class);
+        when(templateReplica.findIds2Template(any())).thenReturn(Collections.emptyMap());
+        cacheRefresher = new CouponCacheRefresher(true, 3600, 30, 60, 1, 10);
+
+        userService = new UserServiceImpl(
+                couponDao, redisService, mock(TemplateClient.class), templateReplica,
+                mock(SettlementClient.class), mock(KafkaTemplate.class),
+                new CouponLoadSingleFlight(null, false, 3000, 20), cacheRefresher
+        );
+    }
+
+    @After
+    public void tearDown() {
+        cacheRefresher.stop();
+    }
+
+    @Test
+    public void testReloadExpiredCoupons() throws Exception {
+
+        Coupon coupon = new Coupon(10, USER_ID, "100119010112345678", CouponStatus.EXPIRED);
+        coupon.setId(3);
+        when(redisService.getCachedCoupons(USER_ID, CouponStatus.EXPIRED.getCode()))
+                .thenReturn(Collections.emptyList());
+        when(couponDao.findAllByUserIdAndStatus(USER_ID, CouponStatus.EXPIRED))
+                .thenReturn(Collections.singletonList(coupon));
+
+        List<Coupon> coupons = userService.findCouponsByStatus(USER_ID, CouponStatus.EXPIRED.getCode());
+
+        Assert.assertEquals(Collections.singletonList(coupon), coupons);
+        // 数据库中的记录直接写入已过期缓存, 不能当作可用优惠券的过期迁移
+        verify(redisService).reloadCouponsToCache(USER_ID, Collections.singletonList(coupon),
+                CouponStatus.EXPIRED.getCode());
+        verify(redisService, never()).addCouponToCache(anyLong(), anyList(), anyInt());
+    }
+
+    @Test
+    public void testReloadEmptyCoupons() throws Exception {
+
+        when(redisService.getCachedCoupons(USER_ID, CouponStatus.EXPIRED.getCode()))
+                .thenReturn(Collections.emptyList());
+        when(couponDao.findAllByUserIdAndStatus(USER_ID, CouponStatus.EXPIRED))
+                .thenReturn(Collections.emptyList());
+
+        Assert.assertTrue(userService.findCouponsByStatus(USER_ID, CouponStatus.EXPIRED.getCode()).isEmpty());
+        verify(redisService).saveEmptyCouponListToCache(USER_ID,
+                Collections.singletonList(CouponStatus.EXPIRED.getCode()));
+    }
+
+    @Test
+    public void testRefreshReplacesCache() throws Exception {
+
+        Integer usable = CouponStatus.USABLE.getCode();
+        when(redisService.getCachedCoupons(USER_ID, usable)).thenReturn(Collections.singletonList(usableCoupon()));
+        when(couponDao.findAllByUserIdAndStatus(USER_ID, CouponStatus.USABLE)).thenReturn(Collections.emptyList());
+
+        cacheRefresher.markStale(USER_ID, usable);
+        userService.findCouponsByStatus(USER_ID, usable);
+
+        // 数据库中没有记录时整体替换为无效的优惠券, 不能叠加在已有的缓存上
+        verify(redisService, timeout(1000)).replaceCouponsInCache(
+                eq(USER_ID), eq(Collections.emptyList()), eq(usable), isNull());
+        verify(redisService, never()).saveEmptyCouponListToCache(anyLong(), anyList());
+        verify(redisService, never()).reloadCouponsToCache(anyLong(), anyList(), anyInt());
+    }
+
+    @Test
+    public void testRefreshSkippedWhilePending() throws Exception {
+
+        Integer usable = CouponStatus.USABLE.getCode();
+        when(redisService.getCachedCoupons(USER_ID, usable)).thenReturn(Collections.singletonList(usableCoupon()));
+        when(redisService.getPendingVersion(USER_ID)).thenReturn("1");
+
+        cacheRefresher.markStale(USER_ID, usable);
+        userService.findCouponsByStatus(USER_ID, usable);
+
+        verify(redisService, timeout(1000)).getPendingVersion(USER_ID);
+        verify(couponDao, after(100).never()).findAllByUserIdAndStatus(anyLong(), any());
+        verify(redisService, never()).replaceCouponsInCache(anyLong(), anyList(), anyInt(), any());
+    }
+
+    private Coupon usableCoupon() {
+
+        CouponTemplateSDK template = new CouponTemplateSDK();
+        template.setRule(new TemplateRule(
+                new TemplateRule.Expiration(PeriodType.REGULAR.getCode(), 1, System.currentTimeMillis() + 3600_000L),
+                null, 1, null, null
+        ));
+        Coupon coupon = new Coupon(10, USER_ID, "100119010112345678", CouponStatus.USABLE);
+        coupon.setId(3);
+        coupon.setTemplateSDK(template);
+        coupon.setAssignTime(new Date());
+
+        return coupon;
+    }
+}
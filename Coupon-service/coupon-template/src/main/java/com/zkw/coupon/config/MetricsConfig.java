@@ -0,0 +1,22 @@
+package com.zkw.coupon.config;
+
+import com.zkw.coupon.converter.RuleConverter;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 自定义监控指标
+ */
+@Configuration
+public class MetricsConfig {
+
+    /**
+     * 优惠券规则缓存的命中、未命中、淘汰次数: cache.gets{cache=template.rule}
+     */
+    @Bean
+    public MeterBinder ruleCacheMetrics() {
+        return registry -> GuavaCacheMetrics.monitor(registry, RuleConverter.ruleCache(), "template.rule");
+    }
+}
@@ -1,14 +1,24 @@
 package com.zkw.coupon.controller;
 
 import com.alibaba.fastjson.JSON;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.zkw.coupon.entity.CouponTemplate;
 import com.zkw.coupon.exception.CouponException;
 import com.zkw.coupon.service.IBuildTemplateService;
+import com.zkw.coupon.schedule.TemplateStockPublisher;
+import com.zkw.coupon.service.ICouponCodeService;
 import com.zkw.coupon.service.ITemplateBaseService;
+import com.zkw.coupon.snapshot.TemplateSnapshot;
+import com.zkw.coupon.vo.CouponCodeProgress;
 import com.zkw.coupon.vo.CouponTemplateSDK;
+import com.zkw.coupon.vo.TemplateChanges;
 import com.zkw.coupon.vo.TemplateRequest;
+import com.zkw.coupon.vo.TemplateStock;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.util.Collection;
 import java.util.List;
@@ -27,9 +37,20 @@ public class CouponTemplateController {
     // 优惠券模板服务
     private final ITemplateBaseService templateBaseService;
 
-    public CouponTemplateController(IBuildTemplateService buildTemplateService, ITemplateBaseService templateBaseService) {
+    // 优惠券码服务
+    private final ICouponCodeService couponCodeService;
+
+    // 模板库存推送
+    private final TemplateStockPublisher stockPublisher;
+
+    public CouponTemplateController(IBuildTemplateService buildTemplateService,
+                                    ITemplateBaseService templateBaseService,
+                                    ICouponCodeService couponCodeService,
+                                    TemplateStockPublisher stockPublisher) {
         this.buildTemplateService = buildTemplateService;
         this.templateBaseService = templateBaseService;
+        this.couponCodeService = couponCodeService;
+        this.stockPublisher = stockPublisher;
     }
 
     /**
@@ -43,6 +64,28 @@ public class CouponTemplateController {
         return buildTemplateService.buildTemplate(request);
     }
 
+    /**
+     * 批量构建优惠券模板
+     * 127.0.0.1:7001/coupon-template/template/build/batch
+     * 127.0.0.1:9000/coupon/coupon-template/template/build/batch
+     */
+    @PostMapping("/template/build/batch")
+    public List<CouponTemplate> buildTemplates(@RequestBody List<TemplateRequest> requests) throws CouponException {
+        log.info("Build templates in batch: {}", requests.size());
+        return buildTemplateService.buildTemplates(requests);
+    }
+
+    /**
+     * 查询优惠券模板码池的构建进度
+     * 127.0.0.1:7001/coupon-template/template/build/1/progress
+     * 127.0.0.1:9000/coupon/coupon-template/template/build/1/progress
+     */
+    @GetMapping("/template/build/{id}/progress")
+    public CouponCodeProgress buildProgress(@PathVariable("id") Integer id) throws CouponException {
+        log.info("Build progress for: {}", id);
+        return buildTemplateService.buildProgress(id);
+    }
+
     /**
      * 构造优惠券模板详情
      * 127.0.0.1:7001/coupon-template/template/info?id=1
@@ -56,23 +99,89 @@ public class CouponTemplateController {
 
     /**
      * 查找所有可用的优惠券模板
+     * 以模板版本号作为 ETag, 版本号没有变化时返回 304, 不再序列化响应
      * 127.0.0.1:7001/coupon-template/template/sdk/all
      * 127.0.0.1:9000/coupon/coupon-template/template/sdk/all
      */
     @GetMapping("/template/sdk/all")
-    public List<CouponTemplateSDK> findAllUsableTemplate() {
+    public List<CouponTemplateSDK> findAllUsableTemplate(WebRequest webRequest) {
+
+        if (webRequest.checkNotModified(templateETag())) {
+            return null;
+        }
+
         log.info("Find all usable template");
         return templateBaseService.findAllUsableTemplate();
     }
 
     /**
      * 获取模板 ids 到 CouponTemplateSDK 的映射
+     * 以版本号和 ids 的哈希作为 ETag, 不同的 ids 不会共用同一个 ETag;
+     * 只有全部模板都在快照中时才支持条件请求, 从数据库补充的模板(如已过期的模板)不受版本号约束, 每次都返回完整结果
      * 127.0.0.1:7001/coupon-template/template/sdk/infos
      * 127.0.0.1:9000/coupon/coupon-template/template/sdk/infos
      */
     @GetMapping("/template/sdk/infos")
-    public Map<Integer, CouponTemplateSDK> findIds2Template(@RequestParam("ids") Collection<Integer> ids) {
+    public Map<Integer, CouponTemplateSDK> findIds2Template(@RequestParam("ids") Collection<Integer> ids,
+                                                            WebRequest webRequest) {
+
+        TemplateSnapshot snapshot = templateBaseService.getTemplateSnapshot();
+        if (ids.stream().allMatch(id -> null != snapshot.get(id))
+                && webRequest.checkNotModified(templateETag(snapshot, ids))) {
+            return null;
+        }
+
         log.info("Find ids to TemplateSDK: {}", JSON.toJSONString(ids));
         return templateBaseService.findIds2TemplateSDK(ids);
     }
+
+    /**
+     * 获取指定版本号之后发生变更的优惠券模板
+     * 127.0.0.1:7001/coupon-template/template/sdk/changes?since=1
+     * 127.0.0.1:9000/coupon/coupon-template/template/sdk/changes?since=1
+     */
+    @GetMapping("/template/sdk/changes")
+    public TemplateChanges findTemplateChanges(@RequestParam(value = "since", defaultValue = "0") Long since) {
+        log.info("Find template changes since: {}", since);
+        return templateBaseService.findTemplateChanges(since);
+    }
+
+    /**
+     * 批量查询优惠券模板的库存(已发放和剩余个数)
+     * 127.0.0.1:7001/coupon-template/template/stock?ids=1,2
+     * 127.0.0.1:9000/coupon/coupon-template/template/stock?ids=1,2
+     */
+    @GetMapping("/template/stock")
+    public Map<Integer, TemplateStock> findTemplateStocks(@RequestParam("ids") Collection<Integer> ids) {
+        log.info("Find template stocks: {}", JSON.toJSONString(ids));
+        return couponCodeService.getTemplateStocks(ids);
+    }
+
+    /**
+     * 订阅优惠券模板的库存, 库存变化时推送(Server-Sent Events)
+     * 127.0.0.1:7001/coupon-template/template/stock/stream?ids=1,2
+     * 127.0.0.1:9000/coupon/coupon-template/template/stock/stream?ids=1,2
+     */
+    @GetMapping("/template/stock/stream")
+    public SseEmitter streamTemplateStocks(@RequestParam("ids") Collection<Integer> ids) {
+        log.info("Stream template stocks: {}", JSON.toJSONString(ids));
+        return stockPublisher.subscribe(ids);
+    }
+
+    /**
+     * 当前模板快照的 ETag: "v{version}"
+     */
+    private String templateETag() {
+        return "\"v" + templateBaseService.getTemplateSnapshot().getVersion() + "\"";
+    }
+
+    /**
+     * 一组模板的 ETag: "v{version}-{ids 的哈希}", ids 去重排序之后计算, 与请求中的顺序无关
+     */
+    private String templateETag(TemplateSnapshot snapshot, Collection<Integer> ids) {
+
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        ids.stream().distinct().sorted().forEach(hasher::putInt);
+        return "\"v" + snapshot.getVersion() + "-" + hasher.hash() + "\"";
+    }
 }
@@ -1,17 +1,36 @@
 package com.zkw.coupon.converter;
 
 import com.alibaba.fastjson.JSON;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.zkw.coupon.vo.TemplateRule;
 
 import javax.persistence.AttributeConverter;
 import javax.persistence.Converter;
+import java.util.concurrent.ExecutionException;
 
 /**
  * 优惠券规则属性转换器
+ * 相同的规则字符串只解析一次, 所有模板共享同一个只读的 TemplateRule 实例, 修改时抛出异常;
+ * 需要修改规则的调用方先 copy() 再修改
  */
 @Converter
 public class RuleConverter implements AttributeConverter<TemplateRule, String> {
 
+    // 规则字符串 -> 解析后的规则
+    private static final Cache<String, TemplateRule> RULE_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(10_000)
+            .recordStats()
+            .build();
+
+    /**
+     * 规则缓存, 用于监控命中率
+     */
+    public static Cache<String, TemplateRule> ruleCache() {
+        return RULE_CACHE;
+    }
+
     @Override
     public String convertToDatabaseColumn(TemplateRule templateRule) {
         return JSON.toJSONString(templateRule);
@@ -19,6 +38,15 @@ public class RuleConverter implements AttributeConverter<TemplateRule, String> {
 
     @Override
     public TemplateRule convertToEntityAttribute(String rule) {
-        return JSON.parseObject(rule, TemplateRule.class);
+
+        if (null == rule) {
+            return null;
+        }
+
+        try {
+            return RULE_CACHE.get(rule, () -> JSON.parseObject(rule, TemplateRule.class).readOnly());
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            throw new IllegalArgumentException("Illegal template rule: " + rule, ex.getCause());
+        }
     }
 }
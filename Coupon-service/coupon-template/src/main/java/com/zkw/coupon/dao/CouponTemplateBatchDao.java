@@ -0,0 +1,14 @@
+package com.zkw.coupon.dao;
+
+import com.zkw.coupon.entity.CouponTemplate;
+
+import java.util.List;
+
+/**
+ * CouponTemplate 批量操作接口定义
+ */
+public interface CouponTemplateBatchDao {
+
+    // 使用多行 INSERT 批量保存模板, 并回填自增主键
+    List<CouponTemplate> insertAll(List<CouponTemplate> templates);
+}
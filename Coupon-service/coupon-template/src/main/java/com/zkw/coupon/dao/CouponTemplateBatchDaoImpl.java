@@ -0,0 +1,85 @@
+package com.zkw.coupon.dao;
+
+import com.zkw.coupon.converter.RuleConverter;
+import com.zkw.coupon.entity.CouponTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CouponTemplate 批量操作接口实现
+ * 主键为自增列, Hibernate 无法批量插入, 这里直接用 JDBC 拼接多行 INSERT
+ */
+public class CouponTemplateBatchDaoImpl implements CouponTemplateBatchDao {
+
+    // 每条 INSERT 语句插入的最大行数
+    private static final int INSERT_BATCH_SIZE = 500;
+
+    private static final String INSERT_SQL = "INSERT INTO coupon_template (available, expired, name, logo, " +
+            "intro, category, product_line, coupon_count, create_time, user_id, template_key, target, rule) VALUES ";
+
+    private static final String INSERT_VALUES = "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final RuleConverter ruleConverter = new RuleConverter();
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public CouponTemplateBatchDaoImpl(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    @Transactional
+    public List<CouponTemplate> insertAll(List<CouponTemplate> templates) {
+
+        for (int from = 0; from < templates.size(); from += INSERT_BATCH_SIZE) {
+            insertChunk(templates.subList(from, Math.min(templates.size(), from + INSERT_BATCH_SIZE)));
+        }
+
+        return templates;
+    }
+
+    private void insertChunk(List<CouponTemplate> chunk) {
+
+        String sql = INSERT_SQL + String.join(", ", Collections.nCopies(chunk.size(), INSERT_VALUES));
+        Date now = new Date();
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+
+        jdbcTemplate.update(connection -> {
+            PreparedStatement ps = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            int index = 1;
+            for (CouponTemplate template : chunk) {
+                template.setCreateTime(now);
+                ps.setBoolean(index++, template.getAvailable());
+                ps.setBoolean(index++, template.getExpired());
+                ps.setString(index++, template.getName());
+                ps.setString(index++, template.getLogo());
+                ps.setString(index++, template.getDesc());
+                ps.setString(index++, template.getCategory().getCode());
+                ps.setInt(index++, template.getProductLine().getCode());
+                ps.setInt(index++, template.getCount());
+                ps.setTimestamp(index++, new Timestamp(now.getTime()));
+                ps.setLong(index++, template.getUserId());
+                ps.setString(index++, template.getKey());
+                ps.setInt(index++, template.getTarget().getCode());
+                ps.setString(index++, ruleConverter.convertToDatabaseColumn(template.getRule()));
+            }
+            return ps;
+        }, keyHolder);
+
+        // MySQL 按插入顺序返回每一行的自增主键
+        List<Map<String, Object>> keys = keyHolder.getKeyList();
+        for (int i = 0; i != chunk.size(); ++i) {
+            chunk.get(i).setId(((Number) keys.get(i).values().iterator().next()).intValue());
+        }
+    }
+}
@@ -2,20 +2,40 @@ package com.zkw.coupon.dao;
 
 import com.zkw.coupon.entity.CouponTemplate;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
  * CouponTemplate Dao 接口定义
  */
-public interface CouponTemplateDao extends JpaRepository<CouponTemplate, Integer> {
+public interface CouponTemplateDao extends JpaRepository<CouponTemplate, Integer>, CouponTemplateBatchDao {
 
     // 根据模板名称查询模板
     CouponTemplate findByName(String name);
 
+    // 根据模板名称批量查询模板
+    List<CouponTemplate> findAllByNameIn(Collection<String> names);
+
     // 根据 available 和 expired 标记查找模板记录
     List<CouponTemplate> findAllByAvailableAndExpired(Boolean available, Boolean expired);
 
     // 根据 expired 标记查找模板记录
     List<CouponTemplate> findAllByExpired(Boolean expired);
+
+    // 批量将模板标记为过期, 返回实际被修改的记录数
+    @Modifying
+    @Transactional
+    @Query("update CouponTemplate t set t.expired = true where t.id in :ids and t.expired = false")
+    int expireAllByIdIn(@Param("ids") Collection<Integer> ids);
+
+    // 将模板标记为可用, 只修改 available 字段, 不会覆盖同时被标记的 expired
+    @Modifying
+    @Transactional
+    @Query("update CouponTemplate t set t.available = true where t.id = :id")
+    int availableById(@Param("id") Integer id);
 }
@@ -0,0 +1,155 @@
+package com.zkw.coupon.generator;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 跨模板的优惠券码去重过滤器
+ * 所有已生成的优惠券码放入可扩容的布隆过滤器, 绝大多数新码在这里一次判定为不重复;
+ * 布隆过滤器命中时, 再用其他模板的生成器逆向求出序号做精确判断, 误判不会导致丢码
+ * 只保存每个模板的生成器和已使用的序号上界, 不保存优惠券码本身
+ */
+public class CouponCodeFilter {
+
+    // 所有模板已生成的优惠券码
+    private final ScalableBloomFilter bloomFilter;
+
+    // 模板 id -> 生成器及已使用的序号上界
+    private final Map<Integer, Registration> registrations = new ConcurrentHashMap<>();
+
+    public CouponCodeFilter(long initialCapacity, double fpp) {
+        this.bloomFilter = new ScalableBloomFilter(initialCapacity, fpp);
+    }
+
+    /**
+     * 登记模板的生成器, 并把序号 [已登记的上界, cursor) 的优惠券码放入布隆过滤器
+     * 用于同步其他实例生成的码池, 对同一个模板重复调用只会补充新增的部分
+     */
+    public void register(Integer templateId, CouponCodeGenerator generator, long cursor) {
+
+        Registration registration = registrations.computeIfAbsent(
+                templateId, id -> new Registration(generator)
+        );
+
+        synchronized (this) {
+            long from = registration.cursor;
+            if (from >= cursor) {
+                return;
+            }
+
+            long[] buffer = new long[(int) Math.min(cursor - from, 1 << 16)];
+            for (long index = from; index < cursor; index += buffer.length) {
+                int length = (int) Math.min(buffer.length, cursor - index);
+                registration.generator.fill(buffer, index, length);
+                for (int i = 0; i != length; ++i) {
+                    bloomFilter.put(buffer[i]);
+                }
+            }
+            registration.cursor = cursor;
+        }
+    }
+
+    /**
+     * 取消登记, 之后布隆过滤器对该模板的码的命中都会被精确判断排除
+     */
+    public void unregister(Integer templateId) {
+        registrations.remove(templateId);
+    }
+
+    /**
+     * 只保留仍然需要参与去重的模板, 其余的取消登记
+     * 传入的模板必须包括已经过期的模板, 它们发出的优惠券码仍然保存在优惠券表中, 不能被新模板再次使用
+     */
+    public void retain(Collection<Integer> templateIds) {
+        registrations.keySet().retainAll(templateIds);
+    }
+
+    /**
+     * 已登记的序号上界, 未登记时返回 -1
+     */
+    public long cursorOf(Integer templateId) {
+
+        Registration registration = registrations.get(templateId);
+        return null == registration ? -1 : registration.cursor;
+    }
+
+    /**
+     * 过滤模板新生成的一块优惠券码, 去掉与其他模板重复的码, 保留的码移动到 codes 的前部
+     * 只做判断, 不修改布隆过滤器, 同一块码最终确认之前可以判断多次
+     * @param templateId 模板 id, 必须已经登记
+     * @param codes 新生成的优惠券码
+     * @param length 有效的个数
+     * @return 保留的优惠券码个数
+     */
+    public synchronized int retainUnique(Integer templateId, long[] codes, int length) {
+
+        Registration self = registrationOf(templateId);
+
+        int kept = 0;
+        for (int i = 0; i != length; ++i) {
+            long code = codes[i];
+            if (bloomFilter.mightContain(code) && isDuplicated(self, code)) {
+                continue;
+            }
+            codes[kept++] = code;
+        }
+
+        return kept;
+    }
+
+    /**
+     * 确认模板的一块优惠券码, 放入布隆过滤器并推进序号上界, 每个码只放入一次
+     * @param templateId 模板 id, 必须已经登记
+     * @param codes 最终保留的优惠券码
+     * @param length 有效的个数
+     * @param cursor 这块优惠券码之后的序号上界
+     */
+    public synchronized void accept(Integer templateId, long[] codes, int length, long cursor) {
+
+        Registration self = registrationOf(templateId);
+        for (int i = 0; i != length; ++i) {
+            bloomFilter.put(codes[i]);
+        }
+        self.cursor = Math.max(self.cursor, cursor);
+    }
+
+    /**
+     * 布隆过滤器中的元素个数的近似内存占用
+     */
+    public long sizeInBytes() {
+        return bloomFilter.sizeInBytes();
+    }
+
+    private Registration registrationOf(Integer templateId) {
+
+        Registration registration = registrations.get(templateId);
+        if (null == registration) {
+            throw new IllegalStateException("CouponTemplate is not registered: " + templateId);
+        }
+        return registration;
+    }
+
+    private boolean isDuplicated(Registration self, long code) {
+
+        for (Registration other : registrations.values()) {
+            if (other != self && other.generator.contains(code, other.cursor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 模板的生成器及已使用的序号上界
+     */
+    private static class Registration {
+
+        private final CouponCodeGenerator generator;
+        private volatile long cursor;
+
+        Registration(CouponCodeGenerator generator) {
+            this.generator = generator;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.zkw.coupon.generator;
+
+import com.zkw.coupon.entity.CouponTemplate;
+
+import java.text.SimpleDateFormat;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 优惠券码生成器
+ * 优惠券码(18位) = 前四位(产品线 + 类型) + 中间六位(日期打乱) + 后八位(首位非 0 的数字)
+ * 后八位由优惠券序号经过带密钥的置换(Feistel)得到, 序号不同则后八位一定不同,
+ * 因此同一个模板内的优惠券码天然不重复, 不需要再用 Set 去重
+ * 中间六位的打乱同样由种子和序号决定, 优惠券码是 (种子, 序号) 的纯函数,
+ * 可以据此精确判断一个优惠券码是否由当前生成器生成, 用于跨模板去重
+ * 优惠券码以 long 表示(18 位十进制数不会超过 long 的范围), 只在推送到 Redis 时才转换为字符串
+ */
+public class CouponCodeGenerator {
+
+    // 后八位可以取的值的个数 [10000000, 99999999], 也是单个模板能够生成的最大优惠券数量
+    public static final int MAX_COUNT = 90_000_000;
+
+    // 优惠券码的长度
+    public static final int CODE_LENGTH = 18;
+
+    private static final long SUFFIX_BASE = 10_000_000L;
+    private static final long MID_BASE = 100_000_000L;
+    private static final long PREFIX_BASE = 100_000_000_000_000L;
+
+    // Feistel 置换的半区位数, 置换的定义域为 [0, 2^28), 大于 MAX_COUNT
+    private static final int HALF_BITS = 14;
+    private static final long HALF_MASK = (1L << HALF_BITS) - 1;
+    private static final int ROUNDS = 4;
+
+    // fork-join 任务拆分的阈值
+    private static final int THRESHOLD = 1 << 14;
+
+    // 前四位 * 10^14
+    private final long prefix;
+
+    // 日期的六个数字
+    private final int[] dateDigits;
+
+    // 每一轮置换使用的密钥
+    private final long[] roundKeys = new long[ROUNDS];
+
+    // 置换的种子
+    private final long seed;
+
+    public CouponCodeGenerator(String prefix4, String date, long seed) {
+
+        if (prefix4.length() != 4 || date.length() != 6 || prefix4.charAt(0) == '0') {
+            throw new IllegalArgumentException("Illegal coupon code prefix or date: " + prefix4 + ", " + date);
+        }
+
+        this.prefix = Long.parseLong(prefix4) * PREFIX_BASE;
+        this.dateDigits = new int[6];
+        for (int i = 0; i != 6; ++i) {
+            dateDigits[i] = date.charAt(i) - '0';
+        }
+        this.seed = seed;
+        for (int i = 0; i != ROUNDS; ++i) {
+            roundKeys[i] = mix(seed + (i + 1) * 0x9E3779B97F4A7C15L);
+        }
+    }
+
+    /**
+     * 根据优惠券模板构造生成器, 种子随机
+     */
+    public static CouponCodeGenerator of(CouponTemplate template) {
+        return of(template, ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * 根据优惠券模板和指定的种子构造生成器
+     */
+    public static CouponCodeGenerator of(CouponTemplate template, long seed) {
+        return new CouponCodeGenerator(prefix4(template), date6(template), seed);
+    }
+
+    /**
+     * 优惠券码的前四位: 产品线 + 类型
+     */
+    public static String prefix4(CouponTemplate template) {
+        return template.getProductLine().getCode().toString() + template.getCategory().getCode();
+    }
+
+    /**
+     * 优惠券码中间六位使用的日期
+     */
+    public static String date6(CouponTemplate template) {
+        return new SimpleDateFormat("yyMMdd").format(template.getCreateTime());
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * 生成序号为 [fromIndex, fromIndex + length) 的优惠券码, 写入 buffer[0, length)
+     * 数量较多时拆分为 fork-join 任务并行生成
+     */
+    public void fill(long[] buffer, long fromIndex, int length) {
+
+        if (length < 0 || length > buffer.length || fromIndex < 0 || fromIndex + length > MAX_COUNT) {
+            throw new IllegalArgumentException("Illegal coupon code range: " + fromIndex + ", " + length);
+        }
+
+        if (length <= THRESHOLD) {
+            fillRange(buffer, 0, length, fromIndex);
+        } else {
+            ForkJoinPool.commonPool().invoke(new FillTask(buffer, 0, length, fromIndex));
+        }
+    }
+
+    /**
+     * 生成序号为 index 的优惠券码
+     */
+    public long codeAt(long index) {
+        return codeAt(index, new int[6]);
+    }
+
+    /**
+     * 判断优惠券码是否是当前生成器在序号 [0, cursor) 内生成的
+     * 通过后八位逆向求出序号, 再重新生成该序号的优惠券码进行比较
+     */
+    public boolean contains(long code, long cursor) {
+
+        if (code / PREFIX_BASE != prefix / PREFIX_BASE) {
+            return false;
+        }
+
+        long suffix = code % MID_BASE - SUFFIX_BASE;
+        if (suffix < 0) {
+            return false;
+        }
+
+        long index = inversePermute(suffix);
+        return index < cursor && codeAt(index) == code;
+    }
+
+    /**
+     * 将 long 表示的优惠券码转换为 18 位字符串
+     */
+    public static String format(long code) {
+
+        char[] chars = new char[CODE_LENGTH];
+        for (int i = CODE_LENGTH - 1; i >= 0; --i) {
+            chars[i] = (char) ('0' + code % 10);
+            code /= 10;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 将 long 表示的优惠券码转换为 18 个 ASCII 字节, 直接用于 Redis 命令, 省去中间的 String
+     */
+    public static byte[] formatBytes(long code) {
+
+        byte[] bytes = new byte[CODE_LENGTH];
+        for (int i = CODE_LENGTH - 1; i >= 0; --i) {
+            bytes[i] = (byte) ('0' + code % 10);
+            code /= 10;
+        }
+        return bytes;
+    }
+
+    /**
+     * 顺序生成 buffer[offset, end) 的优惠券码, 中间六位的打乱复用同一个 int 数组
+     */
+    private void fillRange(long[] buffer, int offset, int end, long fromIndex) {
+
+        int[] scratch = new int[6];
+
+        for (int i = offset; i != end; ++i) {
+            buffer[i] = codeAt(fromIndex + i, scratch);
+        }
+    }
+
+    private long codeAt(long index, int[] scratch) {
+
+        // 中间六位: 对日期的数字做 Fisher-Yates 洗牌, 随机数取自种子和序号的混淆值, 每次取 12 位
+        System.arraycopy(dateDigits, 0, scratch, 0, 6);
+        long random = mix(seed ^ mix(index + 0x9E3779B97F4A7C15L));
+        long mid6 = 0;
+        for (int i = 5; i >= 0; --i) {
+            int j = (int) ((random & 0xFFF) % (i + 1));
+            random >>>= 12;
+            int digit = scratch[j];
+            scratch[j] = scratch[i];
+            mid6 = mid6 * 10 + digit;
+        }
+
+        // 后八位: 序号的置换, 保证首位非 0
+        long suffix8 = SUFFIX_BASE + permute(index);
+
+        return prefix + mid6 * MID_BASE + suffix8;
+    }
+
+    /**
+     * 在 [0, MAX_COUNT) 上的置换: 对 [0, 2^28) 上的 Feistel 置换做 cycle-walking
+     */
+    private long permute(long index) {
+
+        long x = index;
+        do {
+            x = feistel(x);
+        } while (x >= MAX_COUNT);
+
+        return x;
+    }
+
+    /**
+     * permute 的逆运算
+     */
+    private long inversePermute(long value) {
+
+        long x = value;
+        do {
+            x = inverseFeistel(x);
+        } while (x >= MAX_COUNT);
+
+        return x;
+    }
+
+    private long inverseFeistel(long x) {
+
+        long left = (x >>> HALF_BITS) & HALF_MASK;
+        long right = x & HALF_MASK;
+
+        for (int i = ROUNDS - 1; i >= 0; --i) {
+            long previous = right ^ (mix(left ^ roundKeys[i]) & HALF_MASK);
+            right = left;
+            left = previous;
+        }
+
+        return (left << HALF_BITS) | right;
+    }
+
+    private long feistel(long x) {
+
+        long left = (x >>> HALF_BITS) & HALF_MASK;
+        long right = x & HALF_MASK;
+
+        for (int i = 0; i != ROUNDS; ++i) {
+            long next = left ^ (mix(right ^ roundKeys[i]) & HALF_MASK);
+            left = right;
+            right = next;
+        }
+
+        return (left << HALF_BITS) | right;
+    }
+
+    /**
+     * SplitMix64 的混淆函数
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * 并行生成优惠券码的 fork-join 任务
+     */
+    private class FillTask extends RecursiveAction {
+
+        private final long[] buffer;
+        private final int offset;
+        private final int end;
+        private final long fromIndex;
+
+        FillTask(long[] buffer, int offset, int end, long fromIndex) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.end = end;
+            this.fromIndex = fromIndex;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (end - offset <= THRESHOLD) {
+                fillRange(buffer, offset, end, fromIndex);
+                return;
+            }
+
+            int middle = (offset + end) >>> 1;
+            invokeAll(
+                    new FillTask(buffer, offset, middle, fromIndex),
+                    new FillTask(buffer, middle, end, fromIndex)
+            );
+        }
+    }
+}
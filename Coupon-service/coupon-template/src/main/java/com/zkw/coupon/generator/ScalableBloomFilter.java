@@ -0,0 +1,164 @@
+package com.zkw.coupon.generator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 可扩容的布隆过滤器(Scalable Bloom Filter), 元素为 long
+ * 当前分段插入的元素达到容量后追加一个新分段, 新分段容量翻倍、误判率减半,
+ * 总体误判率不超过 2 * fpp, 内存随元素数量线性增长, 不需要预先估计总量
+ * 位数组使用 AtomicLongArray, 多线程可以并发地插入和查询
+ */
+public class ScalableBloomFilter {
+
+    // 每个新分段的容量倍数
+    private static final int GROWTH = 2;
+
+    // 每个新分段的误判率比例
+    private static final double TIGHTENING = 0.5;
+
+    // 第一个分段的容量
+    private final long initialCapacity;
+
+    // 第一个分段的误判率
+    private final double fpp;
+
+    // 所有分段, 扩容时整体替换
+    private volatile Segment[] segments;
+
+    public ScalableBloomFilter(long initialCapacity, double fpp) {
+
+        if (initialCapacity <= 0 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("Illegal bloom filter params: " + initialCapacity + ", " + fpp);
+        }
+
+        this.initialCapacity = initialCapacity;
+        this.fpp = fpp;
+        this.segments = new Segment[]{new Segment(initialCapacity, fpp)};
+    }
+
+    /**
+     * 元素可能存在时返回 true, 一定不存在时返回 false
+     */
+    public boolean mightContain(long key) {
+
+        long hash = hash(key);
+        for (Segment segment : segments) {
+            if (segment.mightContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 插入元素, 当前分段已满时先扩容
+     */
+    public void put(long key) {
+
+        Segment[] current = segments;
+        Segment last = current[current.length - 1];
+        if (last.count.get() >= last.capacity) {
+            last = grow(current);
+        }
+
+        last.put(hash(key));
+    }
+
+    /**
+     * 所有分段占用的字节数
+     */
+    public long sizeInBytes() {
+
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += (long) segment.bits.length() * Long.BYTES;
+        }
+        return bytes;
+    }
+
+    private synchronized Segment grow(Segment[] expected) {
+
+        Segment[] current = segments;
+        if (current != expected) {
+            // 其他线程已经扩容过了
+            return current[current.length - 1];
+        }
+
+        Segment last = current[current.length - 1];
+        Segment[] next = new Segment[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = new Segment(last.capacity * GROWTH, last.fpp * TIGHTENING);
+        segments = next;
+
+        return next[current.length];
+    }
+
+    /**
+     * SplitMix64 的混淆函数, 高低 32 位分别作为双重哈希的两个哈希值
+     */
+    private static long hash(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * 一个固定容量的布隆过滤器分段
+     */
+    private static class Segment {
+
+        private final long capacity;
+        private final double fpp;
+        private final long numBits;
+        private final int numHashes;
+        private final AtomicLongArray bits;
+        private final AtomicLong count = new AtomicLong();
+
+        Segment(long capacity, double fpp) {
+
+            long words = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)) / Long.SIZE);
+            if (words > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Bloom filter segment too large: " + capacity);
+            }
+
+            this.capacity = capacity;
+            this.fpp = fpp;
+            this.bits = new AtomicLongArray((int) Math.max(words, 1));
+            this.numBits = (long) bits.length() * Long.SIZE;
+            this.numHashes = Math.max(1, (int) Math.round((double) numBits / capacity * Math.log(2)));
+        }
+
+        boolean mightContain(long hash) {
+
+            int hash1 = (int) hash;
+            int hash2 = (int) (hash >>> 32);
+            for (int i = 1; i <= numHashes; ++i) {
+                long bit = ((hash1 + (long) i * hash2) & Long.MAX_VALUE) % numBits;
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void put(long hash) {
+
+            int hash1 = (int) hash;
+            int hash2 = (int) (hash >>> 32);
+            for (int i = 1; i <= numHashes; ++i) {
+                long bit = ((hash1 + (long) i * hash2) & Long.MAX_VALUE) % numBits;
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long old;
+                do {
+                    old = bits.get(word);
+                    if ((old & mask) != 0) {
+                        break;
+                    }
+                } while (!bits.compareAndSet(word, old, old | mask));
+            }
+            count.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.zkw.coupon.job;
+
+import com.zkw.coupon.entity.CouponTemplate;
+
+/**
+ * 码池构建任务
+ * 任务每次被调度只生成一段优惠券码, 没有完成时重新入队, 剩余个数少的任务优先;
+ * 等待越久的任务优先级越高(老化), 大模板不会被源源不断的小模板一直压在后面
+ * 任务只在出队之后被修改, 不会改变队列中元素的顺序
+ */
+public class CouponCodeJob implements Comparable<CouponCodeJob> {
+
+    // 优惠券模板实体
+    private final CouponTemplate template;
+
+    // 首次入队的时间(毫秒), 老化从这个时间开始计算
+    private final long submitted;
+
+    // 入队序号, 优先级相同时先入队的优先
+    private long sequence;
+
+    // 入队时计算的优先级, 越小越优先
+    private long priority;
+
+    // 需要立即生成的个数, 初始化码池之前为 -1
+    private long target = -1;
+
+    // 已生成的个数
+    private long generated;
+
+    // 已经失败的次数
+    private int failures;
+
+    public CouponCodeJob(CouponTemplate template, long sequence, long submitted) {
+        this.template = template;
+        this.sequence = sequence;
+        this.submitted = submitted;
+    }
+
+    public CouponTemplate getTemplate() {
+        return template;
+    }
+
+    public boolean isPrepared() {
+        return target >= 0;
+    }
+
+    public void prepare(long target) {
+        this.target = target;
+        this.generated = 0;
+    }
+
+    /**
+     * 失败之后重新执行时, 从码池元信息重新恢复进度
+     */
+    public void reset() {
+        this.target = -1;
+    }
+
+    public void advance(long count) {
+        this.generated += count;
+    }
+
+    /**
+     * 入队之前调用, 重新计算优先级
+     * 老化后的优先级是剩余个数减去已等待的秒数折算的个数, 所有任务减去的当前时间相同,
+     * 比较时只需要剩余个数加上首次入队时间折算的个数, 入队之后不再变化
+     * @param sequence 入队序号
+     * @param epoch 计算优先级的起点时间(毫秒)
+     * @param agingRate 每等待一秒折算的优惠券码个数
+     */
+    public void requeue(long sequence, long epoch, long agingRate) {
+        this.sequence = sequence;
+        this.priority = remaining() + (submitted - epoch) / 1000 * agingRate;
+    }
+
+    public int fail() {
+        return ++failures;
+    }
+
+    /**
+     * 剩余需要生成的个数, 初始化码池之前以模板总数估计
+     */
+    public long remaining() {
+        return isPrepared() ? target - generated : template.getCount();
+    }
+
+    @Override
+    public int compareTo(CouponCodeJob other) {
+
+        int result = Long.compare(priority, other.priority);
+        return 0 != result ? result : Long.compare(sequence, other.sequence);
+    }
+}
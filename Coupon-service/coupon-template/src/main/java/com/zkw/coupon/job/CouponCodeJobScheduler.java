@@ -0,0 +1,405 @@
+package com.zkw.coupon.job;
+
+import com.google.common.base.Stopwatch;
+import com.zkw.coupon.constant.Constant;
+import com.zkw.coupon.dao.CouponTemplateDao;
+import com.zkw.coupon.entity.CouponTemplate;
+import com.zkw.coupon.exception.CouponException;
+import com.zkw.coupon.service.ICouponCodeService;
+import com.zkw.coupon.service.ITemplateBaseService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 码池构建任务调度器
+ * 独立的工作线程从优先队列中取任务, 每次只生成一段, 未完成的任务重新入队, 大模板不会长期占住线程;
+ * 队列中的任务数由许可证限制, 许可证耗尽时直接拒绝构建请求, 不会回落到请求线程上执行
+ * 未完成的任务记录在 Redis 中, 每个任务由持有租约的实例执行, 进度记录在码池元信息中;
+ * 实例重启或异常退出之后租约过期, 由存活(或重启后)的实例接管, 从已生成的部分继续, 并重新占用许可证
+ */
+@Slf4j
+@Component
+public class CouponCodeJobScheduler {
+
+    // 释放租约的脚本, 只有持有者才能释放
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        RELEASE_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/release_lock.lua")
+        ));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    // 续期租约的脚本, 只有持有者才能续期
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        RENEW_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/renew_lock.lua")
+        ));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    // 待执行的任务
+    private final PriorityBlockingQueue<CouponCodeJob> queue = new PriorityBlockingQueue<>();
+
+    // 本实例持有租约的任务(模板 id)
+    private final Set<Integer> owned = ConcurrentHashMap.newKeySet();
+
+    // 入队序号
+    private final AtomicLong sequence = new AtomicLong();
+
+    // 本实例的 id, 作为租约的值
+    private final String nodeId = UUID.randomUUID().toString();
+
+    // 计算优先级的起点时间
+    private final long epoch = System.currentTimeMillis();
+
+    // 优惠券码服务
+    private final ICouponCodeService couponCodeService;
+
+    // CouponTemplate Dao
+    private final CouponTemplateDao couponTemplateDao;
+
+    // 优惠券模板基础服务
+    private final ITemplateBaseService templateBaseService;
+
+    private final StringRedisTemplate redisTemplate;
+
+    // 未完成的任务数上限
+    private final int capacity;
+
+    // 未完成的任务名额
+    private final Semaphore permits;
+
+    // 工作线程数
+    private final int workers;
+
+    // 每次调度生成的优惠券码个数
+    private final long slice;
+
+    // 任务租约的有效期(秒)
+    private final long leaseSeconds;
+
+    // 任务失败之后的最大重试次数
+    private final int maxRetries;
+
+    // 第一次重试的延迟(毫秒), 之后每次翻倍
+    private final long retryDelayMillis;
+
+    // 每等待一秒折算的优惠券码个数
+    private final long agingRate;
+
+    private ExecutorService executor;
+
+    // 续期租约、接管其他实例遗留的任务、延迟重试
+    private ScheduledExecutorService maintainer;
+
+    public CouponCodeJobScheduler(ICouponCodeService couponCodeService, CouponTemplateDao couponTemplateDao,
+                                  ITemplateBaseService templateBaseService, StringRedisTemplate redisTemplate,
+                                  @Value("${coupon.code.job.capacity:100}") int capacity,
+                                  @Value("${coupon.code.job.workers:4}") int workers,
+                                  @Value("${coupon.code.job.slice:100000}") long slice,
+                                  @Value("${coupon.code.job.lease-seconds:60}") long leaseSeconds,
+                                  @Value("${coupon.code.job.max-retries:3}") int maxRetries,
+                                  @Value("${coupon.code.job.retry-delay-millis:5000}") long retryDelayMillis,
+                                  @Value("${coupon.code.job.aging-rate:10000}") long agingRate) {
+        this.couponCodeService = couponCodeService;
+        this.couponTemplateDao = couponTemplateDao;
+        this.templateBaseService = templateBaseService;
+        this.redisTemplate = redisTemplate;
+        this.capacity = capacity;
+        this.permits = new Semaphore(capacity);
+        this.workers = workers;
+        this.slice = slice;
+        this.leaseSeconds = leaseSeconds;
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+        this.agingRate = agingRate;
+    }
+
+    @PostConstruct
+    public void start() {
+
+        executor = Executors.newFixedThreadPool(workers, new CustomizableThreadFactory("CouponCodeJob_"));
+        for (int i = 0; i != workers; ++i) {
+            executor.execute(this::work);
+        }
+
+        // 启动时立即接管未完成的任务, 之后在租约过期之前续期
+        long interval = Math.max(1, leaseSeconds / 3);
+        maintainer = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("CouponCodeJobLease_"));
+        maintainer.scheduleWithFixedDelay(this::maintain, 0, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+
+        maintainer.shutdownNow();
+        executor.shutdownNow();
+        executor.awaitTermination(60, TimeUnit.SECONDS);
+
+        // 主动释放租约, 其他实例不需要等到租约过期就能接管
+        owned.forEach(this::releaseLease);
+    }
+
+    /**
+     * 预留一个任务名额, 在保存模板之前调用, 名额不足时拒绝
+     */
+    public void reserve() throws CouponException {
+        reserve(1);
+    }
+
+    /**
+     * 一次预留多个任务名额, 名额不足时全部拒绝; 超过任务数上限的批次永远无法预留, 直接按上限拒绝
+     */
+    public void reserve(int count) throws CouponException {
+
+        if (count > capacity) {
+            throw new CouponException("Too many templates in one batch, limit: " + capacity);
+        }
+        if (!permits.tryAcquire(count)) {
+            throw new CouponException("Too many coupon code jobs, try again later");
+        }
+    }
+
+    /**
+     * 释放预留的名额, 预留之后没有提交任务时调用
+     */
+    public void release() {
+        release(1);
+    }
+
+    public void release(int count) {
+        permits.release(count);
+    }
+
+    /**
+     * 未完成的任务数上限, 也是一次批量创建模板的个数上限
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 提交任务, 调用之前必须已经预留名额
+     */
+    public void submit(CouponTemplate template) {
+
+        String id = template.getId().toString();
+        redisTemplate.opsForValue().set(leaseKey(template.getId()), nodeId, leaseSeconds, TimeUnit.SECONDS);
+        redisTemplate.opsForSet().add(Constant.RedisPrefix.COUPON_TEMPLATE_JOBS, id);
+        owned.add(template.getId());
+
+        couponCodeService.markCouponCodes(template.getId(), template.getCount(), CouponCodeState.QUEUED);
+        enqueue(new CouponCodeJob(template, sequence.incrementAndGet(), System.currentTimeMillis()));
+        log.info("Submit coupon code job: {}, queued: {}", template.getId(), queue.size());
+    }
+
+    private void enqueue(CouponCodeJob job) {
+
+        job.requeue(sequence.incrementAndGet(), epoch, agingRate);
+        queue.offer(job);
+    }
+
+    private void work() {
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                execute(queue.take());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 执行任务的一段, 未完成时重新入队
+     */
+    private void execute(CouponCodeJob job) {
+
+        CouponTemplate template = job.getTemplate();
+
+        // 租约已经丢失, 任务由其他实例接管
+        if (!owned.contains(template.getId())) {
+            log.warn("Coupon code job is taken over by other node: {}", template.getId());
+            permits.release();
+            return;
+        }
+
+        try {
+            if (!job.isPrepared()) {
+                couponCodeService.markCouponCodes(template.getId(), template.getCount(), CouponCodeState.RUNNING);
+                // 码池已经初始化(重启接管或失败重试)时从已生成的部分继续, 不能重新初始化
+                long remaining = couponCodeService.resumeCouponCodes(template.getId());
+                job.prepare(remaining >= 0 ? remaining : couponCodeService.prepareCouponCodes(template));
+            }
+
+            Stopwatch watch = Stopwatch.createStarted();
+            job.advance(couponCodeService.pushCouponCodes(template.getId(), Math.min(slice, job.remaining())));
+            log.debug("Coupon code job slice: {}, remaining: {}, {}ms",
+                    template.getId(), job.remaining(), watch.elapsed(TimeUnit.MILLISECONDS));
+
+            if (job.remaining() > 0) {
+                enqueue(job);
+                return;
+            }
+
+            couponCodeService.completeCouponCodes(template.getId());
+            template.setAvailable(true);
+            couponTemplateDao.availableById(template.getId());
+            templateBaseService.templateChanged(Collections.singletonList(template.getId()));
+            couponCodeService.markCouponCodes(template.getId(), template.getCount(), CouponCodeState.DONE);
+            finish(template.getId());
+
+            // TODO 发送短信或者邮件通知优惠券模板已经可用
+            log.info("CouponTemplate({}) is available", template.getId());
+        } catch (Exception ex) {
+            fail(job, ex);
+        }
+    }
+
+    /**
+     * 任务失败, 没有超过重试次数时延迟之后重新入队, 重试时从码池元信息恢复进度
+     */
+    private void fail(CouponCodeJob job, Exception ex) {
+
+        Integer templateId = job.getTemplate().getId();
+        int failures = job.fail();
+
+        try {
+            if (failures <= maxRetries) {
+                long delay = retryDelayMillis << (failures - 1);
+                log.warn("Coupon code job error, retry {}/{} after {}ms: {}, {}",
+                        failures, maxRetries, delay, templateId, ex.getMessage());
+                job.reset();
+                couponCodeService.markCouponCodes(templateId, job.getTemplate().getCount(), CouponCodeState.QUEUED);
+                maintainer.schedule(() -> enqueue(job), delay, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            log.error("Coupon code job error: {}, {}", templateId, ex.getMessage());
+            couponCodeService.markCouponCodes(templateId, job.getTemplate().getCount(), CouponCodeState.FAILED);
+            finish(templateId);
+        } catch (RuntimeException other) {
+            // 无法记录状态或者无法安排重试, 放弃执行, 租约过期之后由其他实例接管
+            log.error("Coupon code job state error: {}, {}", templateId, other.getMessage());
+            owned.remove(templateId);
+            permits.release();
+        }
+    }
+
+    /**
+     * 任务结束(完成或者不再重试), 移出未完成的任务并释放租约和名额
+     */
+    private void finish(Integer templateId) {
+
+        try {
+            redisTemplate.opsForSet().remove(Constant.RedisPrefix.COUPON_TEMPLATE_JOBS, templateId.toString());
+            releaseLease(templateId);
+        } finally {
+            owned.remove(templateId);
+            permits.release();
+        }
+    }
+
+    /**
+     * 续期本实例持有的租约, 接管租约已经过期的未完成任务
+     */
+    private void maintain() {
+
+        try {
+            owned.forEach(templateId -> {
+                Long renewed = redisTemplate.execute(
+                        RENEW_SCRIPT, Collections.singletonList(leaseKey(templateId)),
+                        nodeId, String.valueOf(leaseSeconds)
+                );
+                if (!Long.valueOf(1).equals(renewed)) {
+                    log.warn("Lose coupon code job lease: {}", templateId);
+                    owned.remove(templateId);
+                }
+            });
+
+            Set<String> ids = redisTemplate.opsForSet().members(Constant.RedisPrefix.COUPON_TEMPLATE_JOBS);
+            if (CollectionUtils.isEmpty(ids)) {
+                return;
+            }
+            for (String id : ids) {
+                Integer templateId = Integer.valueOf(id);
+                if (!owned.contains(templateId)) {
+                    takeOver(templateId);
+                }
+            }
+        } catch (Exception ex) {
+            log.error("Maintain coupon code jobs error: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * 接管租约已经过期的任务, 名额不足时留给下一次检查
+     */
+    private void takeOver(Integer templateId) {
+
+        if (!permits.tryAcquire()) {
+            return;
+        }
+
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(
+                leaseKey(templateId), nodeId, leaseSeconds, TimeUnit.SECONDS
+        );
+        if (!Boolean.TRUE.equals(locked)) {
+            permits.release();
+            return;
+        }
+        owned.add(templateId);
+
+        try {
+            CouponTemplate template = couponTemplateDao.findById(templateId).orElse(null);
+            if (null == template || Boolean.TRUE.equals(template.getAvailable())
+                    || Boolean.TRUE.equals(template.getExpired())) {
+                log.info("Drop coupon code job: {}", templateId);
+                finish(templateId);
+                return;
+            }
+
+            couponCodeService.markCouponCodes(templateId, template.getCount(), CouponCodeState.QUEUED);
+            enqueue(new CouponCodeJob(template, sequence.incrementAndGet(), System.currentTimeMillis()));
+            log.info("Take over coupon code job: {}, queued: {}", templateId, queue.size());
+        } catch (RuntimeException ex) {
+            log.error("Take over coupon code job error: {}, {}", templateId, ex.getMessage());
+            owned.remove(templateId);
+            permits.release();
+            releaseLease(templateId);
+        }
+    }
+
+    private void releaseLease(Integer templateId) {
+        redisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(leaseKey(templateId)), nodeId);
+    }
+
+    private String leaseKey(Integer templateId) {
+        return String.format("%s%s", Constant.RedisPrefix.COUPON_TEMPLATE_JOB_LEASE, templateId);
+    }
+}
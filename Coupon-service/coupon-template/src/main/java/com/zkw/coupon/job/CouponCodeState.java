@@ -0,0 +1,36 @@
+package com.zkw.coupon.job;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * 码池构建状态枚举
+ */
+@Getter
+@AllArgsConstructor
+public enum CouponCodeState {
+
+    QUEUED("排队中", 1),
+    RUNNING("生成中", 2),
+    DONE("已完成", 3),
+    FAILED("失败", 4);
+
+    // 状态描述
+    private String description;
+
+    // 状态编码
+    private Integer code;
+
+    public static CouponCodeState of(Integer code) {
+
+        Objects.requireNonNull(code);
+
+        return Stream.of(values())
+                .filter(bean -> bean.code.equals(code))
+                .findAny()
+                .orElseThrow(() -> new IllegalArgumentException(code + " not exists"));
+    }
+}
@@ -0,0 +1,26 @@
+package com.zkw.coupon.schedule;
+
+import com.zkw.coupon.service.ICouponCodeService;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * 定时补充按需生成的优惠券码池
+ */
+@Component
+public class CouponCodeRefillTask {
+
+    private final ICouponCodeService couponCodeService;
+
+    public CouponCodeRefillTask(ICouponCodeService couponCodeService) {
+        this.couponCodeService = couponCodeService;
+    }
+
+    /**
+     * 码池剩余个数低于水位时补充一段优惠券码
+     */
+    @Scheduled(fixedDelayString = "${coupon.code.lazy.check-interval:1000}")
+    public void refillCouponCodes() {
+        couponCodeService.refillCouponCodes();
+    }
+}
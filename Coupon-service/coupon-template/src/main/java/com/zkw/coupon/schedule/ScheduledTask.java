@@ -2,6 +2,8 @@ package com.zkw.coupon.schedule;
 
 import com.zkw.coupon.dao.CouponTemplateDao;
 import com.zkw.coupon.entity.CouponTemplate;
+import com.zkw.coupon.service.ICouponCodeService;
+import com.zkw.coupon.service.ITemplateBaseService;
 import com.zkw.coupon.vo.TemplateRule;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
@@ -14,6 +16,7 @@ import java.util.List;
 
 /**
  * 定时清理已过期的优惠券模板
+ * 模板在过期时间到达时由 {@link TemplateDeadlineIndex} 下线, 这里只是兜底
  */
 @Slf4j
 @Component
@@ -21,8 +24,15 @@ public class ScheduledTask {
 
     private final CouponTemplateDao couponTemplateDao;
 
-    public ScheduledTask(CouponTemplateDao couponTemplateDao) {
+    private final ITemplateBaseService templateBaseService;
+
+    private final ICouponCodeService couponCodeService;
+
+    public ScheduledTask(CouponTemplateDao couponTemplateDao, ITemplateBaseService templateBaseService,
+                         ICouponCodeService couponCodeService) {
         this.couponTemplateDao = couponTemplateDao;
+        this.templateBaseService = templateBaseService;
+        this.couponCodeService = couponCodeService;
     }
 
     /**
@@ -40,20 +50,24 @@ public class ScheduledTask {
         }
 
         Date now = new Date();
-        List<CouponTemplate> expiredTemplates = new ArrayList<>(templates.size());
+        List<Integer> expiredIds = new ArrayList<>(templates.size());
 
         templates.forEach(t -> {
             // 根据优惠券模板规则中的"过期规则"校验模板是否过期
             TemplateRule rule = t.getRule();
             if (rule.getExpiration().getDeadline() < now.getTime()) {
-                t.setExpired(true);
-                expiredTemplates.add(t);
+                expiredIds.add(t.getId());
             }
         });
 
-        if (CollectionUtils.isNotEmpty(expiredTemplates)) {
-            log.info("Expired couponTemplates num: {}",
-                    couponTemplateDao.saveAll(expiredTemplates));
+        if (CollectionUtils.isNotEmpty(expiredIds)) {
+            int count = couponTemplateDao.expireAllByIdIn(expiredIds);
+            log.info("Expired couponTemplates num: {}", count);
+            if (count > 0) {
+                templateBaseService.templateChanged(expiredIds);
+            }
+            // 已经被其他实例下线的模板也需要移出码池登记
+            couponCodeService.retireCouponCodes(expiredIds);
         }
         log.info("Done expire CouponTemplate");
     }
@@ -0,0 +1,137 @@
+package com.zkw.coupon.schedule;
+
+import com.alibaba.fastjson.JSON;
+import com.zkw.coupon.dao.CouponTemplateDao;
+import com.zkw.coupon.entity.CouponTemplate;
+import com.zkw.coupon.service.ICouponCodeService;
+import com.zkw.coupon.service.ITemplateBaseService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 优惠券模板过期时间索引
+ * 启动时加载所有未过期模板的过期时间, 新建的模板在保存之后加入; 单独的线程在过期时间到达时
+ * 立即批量下线到期的模板, 定时全量扫描只作为兜底
+ */
+@Slf4j
+@Component
+public class TemplateDeadlineIndex {
+
+    // 按过期时间排序的模板
+    private final DelayQueue<Deadline> deadlines = new DelayQueue<>();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new CustomizableThreadFactory("TemplateExpiry_")
+    );
+
+    private final CouponTemplateDao couponTemplateDao;
+
+    private final ITemplateBaseService templateBaseService;
+
+    private final ICouponCodeService couponCodeService;
+
+    public TemplateDeadlineIndex(CouponTemplateDao couponTemplateDao, ITemplateBaseService templateBaseService,
+                                 ICouponCodeService couponCodeService) {
+        this.couponTemplateDao = couponTemplateDao;
+        this.templateBaseService = templateBaseService;
+        this.couponCodeService = couponCodeService;
+    }
+
+    /**
+     * 启动完成之后从数据库重建索引, 并开始处理到期的模板
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+
+        List<CouponTemplate> templates = couponTemplateDao.findAllByExpired(false);
+        templates.forEach(this::track);
+        log.info("Load template deadline index: {}", templates.size());
+
+        executor.execute(this::work);
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 将模板加入索引
+     */
+    public void track(CouponTemplate template) {
+        deadlines.offer(new Deadline(template.getId(), template.getRule().getExpiration().getDeadline()));
+    }
+
+    private void work() {
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                // 等待第一个到期的模板, 再取出同时到期的其他模板一起下线
+                List<Deadline> expired = new ArrayList<>();
+                expired.add(deadlines.take());
+                deadlines.drainTo(expired);
+                expire(expired);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void expire(List<Deadline> expired) throws InterruptedException {
+
+        List<Integer> ids = new ArrayList<>(expired.size());
+        expired.forEach(d -> ids.add(d.templateId));
+
+        try {
+            // 多个实例同时处理时, 只有实际修改了记录的实例通知模板变更
+            int count = couponTemplateDao.expireAllByIdIn(ids);
+            log.info("Expire CouponTemplate at deadline: {}, updated: {}", JSON.toJSONString(ids), count);
+            if (count > 0) {
+                templateBaseService.templateChanged(ids);
+            }
+            // 过期的模板不再补充码池, 也不再参与新码的去重
+            couponCodeService.retireCouponCodes(ids);
+        } catch (Exception ex) {
+            log.error("Expire CouponTemplate error: {}, {}", JSON.toJSONString(ids), ex.getMessage());
+            // 稍后重试, 一直失败时由定时全量扫描兜底
+            TimeUnit.SECONDS.sleep(1);
+            expired.forEach(deadlines::offer);
+        }
+    }
+
+    /**
+     * 模板 id 和过期时间
+     */
+    private static class Deadline implements Delayed {
+
+        private final Integer templateId;
+        private final long deadline;
+
+        Deadline(Integer templateId, long deadline) {
+            this.templateId = templateId;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(deadline, ((Deadline) other).deadline);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.zkw.coupon.schedule;
+
+import com.zkw.coupon.service.ITemplateBaseService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * 定时检查模板版本号, 同步其他实例对模板的修改
+ */
+@Slf4j
+@Component
+public class TemplateSnapshotTask {
+
+    private final ITemplateBaseService templateBaseService;
+
+    public TemplateSnapshotTask(ITemplateBaseService templateBaseService) {
+        this.templateBaseService = templateBaseService;
+    }
+
+    /**
+     * 快照落后于 Redis 中的版本号时重新加载
+     */
+    @Scheduled(fixedDelayString = "${coupon.template.snapshot.check-interval:5000}")
+    public void refreshTemplateSnapshot() {
+
+        try {
+            templateBaseService.refreshTemplateSnapshot();
+        } catch (Exception ex) {
+            log.error("Refresh CouponTemplate snapshot error: {}", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.zkw.coupon.schedule;
+
+import com.zkw.coupon.service.ICouponCodeService;
+import com.zkw.coupon.vo.TemplateStock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 定时向订阅者推送模板库存(Server-Sent Events)
+ * 每次推送只对所有订阅者关注的模板做一次批量查询, 库存没有变化的订阅者不推送
+ */
+@Slf4j
+@Component
+public class TemplateStockPublisher {
+
+    // 订阅者 -> 订阅信息
+    private final Map<SseEmitter, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    private final ICouponCodeService couponCodeService;
+
+    // 订阅的超时时间(毫秒)
+    private final long timeout;
+
+    public TemplateStockPublisher(ICouponCodeService couponCodeService,
+                                  @Value("${coupon.template.stock.stream-timeout:1800000}") long timeout) {
+        this.couponCodeService = couponCodeService;
+        this.timeout = timeout;
+    }
+
+    /**
+     * 订阅模板库存, 连接结束时自动取消
+     */
+    public SseEmitter subscribe(Collection<Integer> ids) {
+
+        SseEmitter emitter = new SseEmitter(timeout);
+        subscriptions.put(emitter, new Subscription(new HashSet<>(ids)));
+
+        emitter.onCompletion(() -> subscriptions.remove(emitter));
+        emitter.onTimeout(() -> subscriptions.remove(emitter));
+        emitter.onError(ex -> subscriptions.remove(emitter));
+
+        return emitter;
+    }
+
+    @Scheduled(fixedDelayString = "${coupon.template.stock.push-interval:1000}")
+    public void publish() {
+
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+
+        Set<Integer> ids = new HashSet<>();
+        subscriptions.values().forEach(s -> ids.addAll(s.ids));
+
+        Map<Integer, TemplateStock> stocks;
+        try {
+            stocks = couponCodeService.getTemplateStocks(ids);
+        } catch (Exception ex) {
+            log.error("Publish template stock error: {}", ex.getMessage());
+            return;
+        }
+
+        subscriptions.forEach((emitter, subscription) -> {
+
+            Map<Integer, TemplateStock> current = new HashMap<>(subscription.ids.size() * 2);
+            subscription.ids.forEach(id -> {
+                if (stocks.containsKey(id)) {
+                    current.put(id, stocks.get(id));
+                }
+            });
+            if (current.equals(subscription.last)) {
+                return;
+            }
+
+            try {
+                emitter.send(SseEmitter.event().name("stock").data(current));
+                subscription.last = current;
+            } catch (IOException | IllegalStateException ex) {
+                subscriptions.remove(emitter);
+                emitter.completeWithError(ex);
+            }
+        });
+    }
+
+    /**
+     * 订阅的模板和最后一次推送的库存
+     */
+    private static class Subscription {
+
+        private final Set<Integer> ids;
+        private Map<Integer, TemplateStock> last;
+
+        Subscription(Set<Integer> ids) {
+            this.ids = ids;
+        }
+    }
+}
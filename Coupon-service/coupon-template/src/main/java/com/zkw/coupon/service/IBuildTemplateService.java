@@ -2,8 +2,11 @@ package com.zkw.coupon.service;
 
 import com.zkw.coupon.entity.CouponTemplate;
 import com.zkw.coupon.exception.CouponException;
+import com.zkw.coupon.vo.CouponCodeProgress;
 import com.zkw.coupon.vo.TemplateRequest;
 
+import java.util.List;
+
 /**
  * 构建优惠券模板接口定义
  */
@@ -15,4 +18,18 @@ public interface IBuildTemplateService {
      * @return {@link CouponTemplate} 优惠券模板实体
      */
     CouponTemplate buildTemplate(TemplateRequest request) throws CouponException;
+
+    /**
+     * 批量创建优惠券模板
+     * @param requests {@link TemplateRequest}s 模板信息请求对象
+     * @return {@link CouponTemplate}s 优惠券模板实体, 与请求的顺序一致
+     */
+    List<CouponTemplate> buildTemplates(List<TemplateRequest> requests) throws CouponException;
+
+    /**
+     * 查询优惠券模板码池的构建进度
+     * @param id 模板 id
+     * @return {@link CouponCodeProgress} 构建进度
+     */
+    CouponCodeProgress buildProgress(Integer id) throws CouponException;
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+package com.zkw.coupon.service;
+
+import com.zkw.coupon.entity.CouponTemplate;
+import com.zkw.coupon.job.CouponCodeState;
+import com.zkw.coupon.vo.CouponCodeProgress;
+import com.zkw.coupon.vo.TemplateStock;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 优惠券码(Redis 码池)相关服务接口定义
+ */
+public interface ICouponCodeService {
+
+    /**
+     * 为优惠券模板初始化码池, 记录生成器参数, 不生成优惠券码
+     * 总数较少时需要立即生成全部优惠券码; 开启按需生成并且总数较多时, 只需要立即生成初始的一段,
+     * 剩余的由 {@link #refillCouponCodes()} 在码池低于水位时补充
+     * @param template {@link CouponTemplate} 优惠券模板实体
+     * @return 需要立即生成的优惠券码个数
+     */
+    long prepareCouponCodes(CouponTemplate template);
+
+    /**
+     * 恢复已经初始化的码池, 任务中断(实例重启或失败重试)之后调用, 不会重置已生成的部分
+     * @param templateId 优惠券模板 id
+     * @return 立即生成的部分还需要生成的个数, 码池还没有初始化时返回 -1
+     */
+    long resumeCouponCodes(Integer templateId);
+
+    /**
+     * 从码池的序号上界继续生成优惠券码并推送到 Redis
+     * @param templateId 优惠券模板 id
+     * @param count 本次生成的个数
+     * @return 本次推送到 Redis 的优惠券码个数
+     */
+    long pushCouponCodes(Integer templateId, long count);
+
+    /**
+     * 立即生成的部分完成之后调用, 码池未满时交给按需补充
+     * @param templateId 优惠券模板 id
+     */
+    void completeCouponCodes(Integer templateId);
+
+    /**
+     * 检查所有按需生成的码池, 对低于水位的码池补充一段优惠券码, 直到达到模板总数
+     */
+    void refillCouponCodes();
+
+    /**
+     * 模板过期之后调用, 不再补充码池, 模板也不再参与新码的去重
+     * @param templateIds 优惠券模板 ids
+     */
+    void retireCouponCodes(Collection<Integer> templateIds);
+
+    /**
+     * 记录码池的构建状态
+     * @param templateId 优惠券模板 id
+     * @param total 优惠券模板总数
+     * @param state {@link CouponCodeState} 构建状态
+     */
+    void markCouponCodes(Integer templateId, long total, CouponCodeState state);
+
+    /**
+     * 查询码池的构建进度
+     * @param templateId 优惠券模板 id
+     * @return {@link CouponCodeProgress} 构建进度, 码池不存在时返回 null
+     */
+    CouponCodeProgress getCouponCodeProgress(Integer templateId);
+
+    /**
+     * 批量查询模板的库存, 只读取生成和发放时累加的计数器, 一次 Redis 往返
+     * @param ids 优惠券模板 ids
+     * @return Map<key: 模板 id, value: TemplateStock>, 码池不存在的模板不返回
+     */
+    Map<Integer, TemplateStock> getTemplateStocks(Collection<Integer> ids);
+}
@@ -2,7 +2,9 @@ package com.zkw.coupon.service;
 
 import com.zkw.coupon.entity.CouponTemplate;
 import com.zkw.coupon.exception.CouponException;
+import com.zkw.coupon.snapshot.TemplateSnapshot;
 import com.zkw.coupon.vo.CouponTemplateSDK;
+import com.zkw.coupon.vo.TemplateChanges;
 
 import java.util.Collection;
 import java.util.List;
@@ -32,4 +34,28 @@ public interface ITemplateBaseService {
      * @return Map<key: 模板 id, value: CouponTemplateSDK> </key:>
      */
     Map<Integer, CouponTemplateSDK> findIds2TemplateSDK(Collection<Integer> ids);
+
+    /**
+     * 获取指定版本号之后发生变更的模板
+     * @param since 调用方已经同步到的版本号, 0 表示全量
+     * @return {@link TemplateChanges} 增量(或全量)变更信息
+     */
+    TemplateChanges findTemplateChanges(long since);
+
+    /**
+     * 获取可用优惠券模板的快照, 快照不存在时从数据库加载
+     * @return {@link TemplateSnapshot} 带版本号的不可变快照
+     */
+    TemplateSnapshot getTemplateSnapshot();
+
+    /**
+     * 检查模板版本号, 快照落后时重新加载
+     */
+    void refreshTemplateSnapshot();
+
+    /**
+     * 模板变为可用或过期之后调用, 递增版本号并重建快照
+     * @param ids 发生变更的模板 ids
+     */
+    void templateChanged(Collection<Integer> ids);
 }
@@ -3,12 +3,21 @@ package com.zkw.coupon.service.impl;
 import com.zkw.coupon.dao.CouponTemplateDao;
 import com.zkw.coupon.entity.CouponTemplate;
 import com.zkw.coupon.exception.CouponException;
-import com.zkw.coupon.service.IAsyncService;
+import com.zkw.coupon.job.CouponCodeJobScheduler;
+import com.zkw.coupon.schedule.TemplateDeadlineIndex;
 import com.zkw.coupon.service.IBuildTemplateService;
+import com.zkw.coupon.service.ICouponCodeService;
+import com.zkw.coupon.vo.CouponCodeProgress;
 import com.zkw.coupon.vo.TemplateRequest;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
 import org.springframework.stereotype.Service;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 /**
  * 构建优惠券模板接口实现
  */
@@ -16,12 +25,21 @@ import org.springframework.stereotype.Service;
 @Service
 public class BuildTemplateServiceImpl implements IBuildTemplateService {
 
-    private final IAsyncService asyncService;
+    private final CouponCodeJobScheduler jobScheduler;
+
+    private final ICouponCodeService couponCodeService;
+
+    private final TemplateDeadlineIndex deadlineIndex;
 
     private final CouponTemplateDao couponTemplateDao;
 
-    public BuildTemplateServiceImpl(IAsyncService asyncService, CouponTemplateDao couponTemplateDao) {
-        this.asyncService = asyncService;
+    public BuildTemplateServiceImpl(CouponCodeJobScheduler jobScheduler,
+                                    ICouponCodeService couponCodeService,
+                                    TemplateDeadlineIndex deadlineIndex,
+                                    CouponTemplateDao couponTemplateDao) {
+        this.jobScheduler = jobScheduler;
+        this.couponCodeService = couponCodeService;
+        this.deadlineIndex = deadlineIndex;
         this.couponTemplateDao = couponTemplateDao;
     }
 
@@ -43,16 +61,100 @@ public class BuildTemplateServiceImpl implements IBuildTemplateService {
             throw new CouponException("Exist same name template");
         }
 
+        // 先预留码池构建任务的名额, 任务过多时直接拒绝, 不保存模板
+        jobScheduler.reserve();
+
         // 构造 CouponTemplate 并保存到数据库中
-        CouponTemplate template = request2Template(request);
-        template = couponTemplateDao.save(template);
+        CouponTemplate template;
+        try {
+            template = couponTemplateDao.save(request2Template(request));
+        } catch (RuntimeException ex) {
+            jobScheduler.release();
+            throw ex;
+        }
+
+        // 加入过期时间索引, 到期时自动下线
+        deadlineIndex.track(template);
 
-        // 根据优惠券模板异步生成优惠券码
-        asyncService.asyncConstructCouponByTemplate(template);
+        // 提交码池构建任务, 由任务调度器异步生成优惠券码
+        jobScheduler.submit(template);
 
         return template;
     }
 
+    /**
+     * 批量创建优惠券模板
+     * 一次查询校验重名, 多行 INSERT 批量保存, 所有模板的码池构建任务交给同一个任务调度器
+     * @param requests {@link TemplateRequest}s 模板信息请求对象
+     * @return {@link CouponTemplate}s 优惠券模板实体, 与请求的顺序一致
+     */
+    @Override
+    public List<CouponTemplate> buildTemplates(List<TemplateRequest> requests) throws CouponException {
+
+        if (CollectionUtils.isEmpty(requests)) {
+            throw new CouponException("BuildTemplate batch is empty");
+        }
+        // 每个模板占用一个码池构建任务名额, 超过名额上限的批次在校验之前拒绝
+        if (requests.size() > jobScheduler.getCapacity()) {
+            throw new CouponException("BuildTemplate batch exceeds limit: " + jobScheduler.getCapacity());
+        }
+
+        // 参数合法性校验, 同一批次内不能重名
+        Set<String> names = new HashSet<>(requests.size() * 2);
+        for (TemplateRequest request : requests) {
+            if (!request.validate()) {
+                throw new CouponException("BuildTemplate param is not valid: " + request.getName());
+            }
+            if (!names.add(request.getName())) {
+                throw new CouponException("Duplicate template name in batch: " + request.getName());
+            }
+        }
+
+        // 一次查询判断同名优惠券模板是否存在
+        List<CouponTemplate> exists = couponTemplateDao.findAllByNameIn(names);
+        if (CollectionUtils.isNotEmpty(exists)) {
+            throw new CouponException("Exist same name template: " + exists.stream()
+                    .map(CouponTemplate::getName).collect(Collectors.joining(",")));
+        }
+
+        // 整批预留码池构建任务的名额, 名额不足时整批拒绝
+        jobScheduler.reserve(requests.size());
+
+        List<CouponTemplate> templates;
+        try {
+            templates = couponTemplateDao.insertAll(
+                    requests.stream().map(this::request2Template).collect(Collectors.toList())
+            );
+        } catch (RuntimeException ex) {
+            jobScheduler.release(requests.size());
+            throw ex;
+        }
+
+        templates.forEach(template -> {
+            deadlineIndex.track(template);
+            jobScheduler.submit(template);
+        });
+        log.info("Build templates in batch: {}", templates.size());
+
+        return templates;
+    }
+
+    /**
+     * 查询优惠券模板码池的构建进度
+     * @param id 模板 id
+     * @return {@link CouponCodeProgress} 构建进度
+     */
+    @Override
+    public CouponCodeProgress buildProgress(Integer id) throws CouponException {
+
+        CouponCodeProgress progress = couponCodeService.getCouponCodeProgress(id);
+        if (null == progress) {
+            throw new CouponException("Template code pool is not exist: " + id);
+        }
+
+        return progress;
+    }
+
     /**
      * 将 TemplateRequest 转换为 CouponTemplate
      */
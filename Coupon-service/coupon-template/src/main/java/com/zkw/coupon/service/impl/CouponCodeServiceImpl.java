@@ -0,0 +1,848 @@
+package com.zkw.coupon.service.impl;
+
+import com.zkw.coupon.constant.Constant;
+import com.zkw.coupon.entity.CouponTemplate;
+import com.zkw.coupon.generator.CouponCodeFilter;
+import com.zkw.coupon.generator.CouponCodeGenerator;
+import com.zkw.coupon.job.CouponCodeState;
+import com.zkw.coupon.service.ICouponCodeService;
+import com.zkw.coupon.vo.CouponCodeProgress;
+import com.zkw.coupon.vo.TemplateStock;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.collections4.MapUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 优惠券码(Redis 码池)相关服务接口实现
+ */
+@Slf4j
+@Service
+public class CouponCodeServiceImpl implements ICouponCodeService {
+
+    // 每一块生成的优惠券码个数
+    private static final int CHUNK_SIZE = 10_000;
+
+    // 每条 RPUSH 命令携带的优惠券码个数
+    private static final int PUSH_BATCH_SIZE = 1_000;
+
+    // 码池补充锁的过期时间(秒)
+    private static final long LOCK_EXPIRE_SECONDS = 60;
+
+    // 正在推送的优惠券码集合的过期时间(秒), 实例异常退出时遗留的码最终被清除
+    private static final long CLAIM_EXPIRE_SECONDS = 3600;
+
+    // 码池元信息字段
+    private static final String META_PREFIX = "prefix";
+    private static final String META_DATE = "date";
+    private static final String META_SEED = "seed";
+    private static final String META_TOTAL = "total";
+    private static final String META_GENERATED = "generated";
+    private static final String META_CURSOR = "cursor";
+    private static final String META_FORMAT = "format";
+    private static final String META_OFFSET = "offset";
+    private static final String META_STATE = "state";
+    private static final String META_ISSUED = "issued";
+    private static final String META_SHARDS = "shards";
+    private static final String META_TARGET = "target";
+
+    // 同步去重过滤器时读取的码池元信息字段
+    private static final byte[][] FILTER_FIELDS = {
+            META_PREFIX.getBytes(StandardCharsets.UTF_8),
+            META_DATE.getBytes(StandardCharsets.UTF_8),
+            META_SEED.getBytes(StandardCharsets.UTF_8),
+            META_CURSOR.getBytes(StandardCharsets.UTF_8),
+            META_GENERATED.getBytes(StandardCharsets.UTF_8)
+    };
+
+    // 二进制格式下每个优惠券码占用的字节数
+    private static final int BINARY_CODE_BYTES = 8;
+
+    // 二进制格式中前 9 位与后 9 位的分界
+    private static final long BINARY_SPLIT = 1_000_000_000L;
+
+    // 压缩二进制优惠券码的脚本
+    private static final DefaultRedisScript<Long> COMPACT_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        COMPACT_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/compact_coupon_code.lua")
+        ));
+        COMPACT_SCRIPT.setResultType(Long.class);
+    }
+
+    // 把一块优惠券码加入正在推送的集合的脚本
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        CLAIM_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/claim_coupon_codes.lua")
+        ));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    // 释放码池补充锁的脚本, 只有持有者才能释放
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        RELEASE_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/release_lock.lua")
+        ));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate redisTemplate;
+
+    // 是否使用二进制格式存储优惠券码
+    private final boolean binaryStorage;
+
+    // 是否开启按需生成
+    private final boolean lazyEnabled;
+
+    // 按需生成时, 初始生成的优惠券码个数, 总数不超过该值的模板一次生成全部
+    private final long initialSegment;
+
+    // 码池剩余个数低于该值时补充
+    private final long watermark;
+
+    // 每次补充的优惠券码个数
+    private final long segment;
+
+    // 跨模板的优惠券码去重过滤器
+    private final CouponCodeFilter codeFilter;
+
+    // 列表格式的码池分片数, 每个分片是一个单独的列表
+    private final int shards;
+
+    public CouponCodeServiceImpl(StringRedisTemplate redisTemplate,
+                                 @Value("${coupon.code.storage:list}") String storage,
+                                 @Value("${coupon.code.lazy.enabled:false}") boolean lazyEnabled,
+                                 @Value("${coupon.code.lazy.initial-segment:100000}") long initialSegment,
+                                 @Value("${coupon.code.lazy.watermark:20000}") long watermark,
+                                 @Value("${coupon.code.lazy.segment:50000}") long segment,
+                                 @Value("${coupon.code.filter.initial-capacity:1000000}") long filterCapacity,
+                                 @Value("${coupon.code.filter.fpp:0.01}") double filterFpp,
+                                 @Value("${coupon.code.shards:1}") int shards) {
+        this.redisTemplate = redisTemplate;
+        this.binaryStorage = "binary".equalsIgnoreCase(storage);
+        this.lazyEnabled = lazyEnabled;
+        this.initialSegment = initialSegment;
+        this.watermark = watermark;
+        this.segment = segment;
+        this.codeFilter = new CouponCodeFilter(filterCapacity, filterFpp);
+        this.shards = Math.max(1, shards);
+    }
+
+    /**
+     * 为优惠券模板初始化码池, 记录生成器参数, 不生成优惠券码
+     * @param template {@link CouponTemplate} 优惠券模板实体
+     * @return 需要立即生成的优惠券码个数
+     */
+    @Override
+    public long prepareCouponCodes(CouponTemplate template) {
+
+        CouponCodeGenerator generator = CouponCodeGenerator.of(template);
+        long total = template.getCount();
+
+        // 记录码池元信息, 分段生成和按需补充时据此恢复生成器
+        Map<String, String> meta = new HashMap<>();
+        meta.put(META_PREFIX, CouponCodeGenerator.prefix4(template));
+        meta.put(META_DATE, CouponCodeGenerator.date6(template));
+        meta.put(META_SEED, String.valueOf(generator.getSeed()));
+        meta.put(META_TOTAL, String.valueOf(total));
+        meta.put(META_GENERATED, "0");
+        meta.put(META_CURSOR, "0");
+        meta.put(META_FORMAT, binaryStorage ? "binary" : "list");
+        // 二进制格式只有一个二进制串, 不分片
+        meta.put(META_SHARDS, String.valueOf(binaryStorage ? 1 : shards));
+        // 需要立即生成的个数, 任务中断之后据此恢复
+        long target = lazyEnabled && total > initialSegment ? initialSegment : total;
+        meta.put(META_TARGET, String.valueOf(target));
+        redisTemplate.opsForHash().putAll(metaKey(template.getId()), meta);
+
+        // 先登记再生成, 其他实例同步时就能看到这个模板
+        redisTemplate.opsForSet().add(Constant.RedisPrefix.COUPON_TEMPLATE_REGISTRY, template.getId().toString());
+        syncCodeFilter();
+        codeFilter.register(template.getId(), generator, 0);
+
+        return target;
+    }
+
+    /**
+     * 恢复已经初始化的码池, 从元信息中的立即生成个数和已生成个数计算剩余的部分
+     * @param templateId 优惠券模板 id
+     * @return 立即生成的部分还需要生成的个数, 码池还没有初始化时返回 -1
+     */
+    @Override
+    public long resumeCouponCodes(Integer templateId) {
+
+        List<Object> values = redisTemplate.opsForHash().multiGet(
+                metaKey(templateId), Arrays.asList(META_TARGET, META_GENERATED, META_SEED)
+        );
+        // 只有 markCouponCodes 写入的状态, 还没有记录生成器参数
+        if (null == values.get(0) || null == values.get(2)) {
+            return -1;
+        }
+
+        long target = Long.parseLong(values.get(0).toString());
+        long generated = Long.parseLong(Objects.toString(values.get(1), "0"));
+        log.info("Resume coupon code pool: {}, {}/{}", templateId, generated, target);
+
+        return Math.max(0, target - generated);
+    }
+
+    /**
+     * 从码池的序号上界继续生成优惠券码并推送到 Redis
+     * @param templateId 优惠券模板 id
+     * @param count 本次生成的个数
+     * @return 本次推送到 Redis 的优惠券码个数
+     */
+    @Override
+    public long pushCouponCodes(Integer templateId, long count) {
+
+        Map<Object, Object> meta = redisTemplate.opsForHash().entries(metaKey(templateId));
+        if (MapUtils.isEmpty(meta)) {
+            throw new IllegalStateException("Coupon code pool not exists: " + templateId);
+        }
+
+        return pushCouponCodes(templateId, meta, count, syncCodeFilter());
+    }
+
+    /**
+     * 立即生成的部分完成之后, 码池未满时加入按需生成的集合
+     * @param templateId 优惠券模板 id
+     */
+    @Override
+    public void completeCouponCodes(Integer templateId) {
+
+        List<Object> values = redisTemplate.opsForHash().multiGet(
+                metaKey(templateId), Arrays.asList(META_GENERATED, META_TOTAL)
+        );
+        long generated = Long.parseLong(Objects.toString(values.get(0), "0"));
+        long total = Long.parseLong(Objects.toString(values.get(1), "0"));
+
+        if (generated < total) {
+            redisTemplate.opsForSet().add(Constant.RedisPrefix.COUPON_TEMPLATE_LAZY, templateId.toString());
+            log.info("CouponTemplate({}) code pool is lazy: {}/{}", templateId, generated, total);
+        }
+    }
+
+    /**
+     * 模板过期之后, 从登记和按需生成的集合中移除, 不再补充和同步码池
+     * 过期模板发出的优惠券码仍然保存在优惠券表中, 生成器参数和序号上界转存到过期模板的 hash 中, 继续参与去重
+     * @param templateIds 优惠券模板 ids
+     */
+    @Override
+    public void retireCouponCodes(Collection<Integer> templateIds) {
+
+        if (CollectionUtils.isEmpty(templateIds)) {
+            return;
+        }
+
+        List<Integer> ids = new ArrayList<>(templateIds);
+        List<Object> metas = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            ids.forEach(id -> connection.hMGet(metaKey(id).getBytes(StandardCharsets.UTF_8), FILTER_FIELDS));
+            return null;
+        });
+
+        Map<String, String> retired = new HashMap<>();
+        for (int i = 0; i != ids.size(); ++i) {
+            List<?> values = (List<?>) metas.get(i);
+            if (CollectionUtils.isNotEmpty(values) && null != values.get(0)) {
+                retired.put(ids.get(i).toString(), String.format("%s_%s_%s_%s",
+                        values.get(0), values.get(1), values.get(2), cursorOf(values)));
+            }
+        }
+        // 先转存再移出登记, 其他实例同步时不会出现两边都找不到的窗口
+        if (MapUtils.isNotEmpty(retired)) {
+            redisTemplate.opsForHash().putAll(Constant.RedisPrefix.COUPON_TEMPLATE_RETIRED, retired);
+        }
+
+        Object[] members = ids.stream().map(Object::toString).toArray();
+        redisTemplate.opsForSet().remove(Constant.RedisPrefix.COUPON_TEMPLATE_REGISTRY, members);
+        redisTemplate.opsForSet().remove(Constant.RedisPrefix.COUPON_TEMPLATE_LAZY, members);
+        log.info("Retire coupon code pools: {}", templateIds);
+    }
+
+    /**
+     * 检查所有按需生成的码池, 对低于水位的码池补充一段优惠券码, 直到达到模板总数
+     */
+    @Override
+    public void refillCouponCodes() {
+
+        Set<String> templateIds = redisTemplate.opsForSet().members(Constant.RedisPrefix.COUPON_TEMPLATE_LAZY);
+        if (CollectionUtils.isEmpty(templateIds)) {
+            return;
+        }
+
+        templateIds.forEach(id -> {
+            try {
+                refillCouponCodes(Integer.valueOf(id));
+            } catch (Exception ex) {
+                log.error("Refill coupon codes error: {}, {}", id, ex.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 记录码池的构建状态
+     */
+    @Override
+    public void markCouponCodes(Integer templateId, long total, CouponCodeState state) {
+
+        Map<String, String> meta = new HashMap<>();
+        meta.put(META_TOTAL, String.valueOf(total));
+        meta.put(META_STATE, state.getCode().toString());
+        redisTemplate.opsForHash().putAll(metaKey(templateId), meta);
+    }
+
+    /**
+     * 查询码池的构建进度
+     */
+    @Override
+    public CouponCodeProgress getCouponCodeProgress(Integer templateId) {
+
+        List<Object> values = redisTemplate.opsForHash().multiGet(
+                metaKey(templateId), Arrays.asList(META_STATE, META_GENERATED, META_TOTAL)
+        );
+        if (null == values.get(0)) {
+            return null;
+        }
+
+        return new CouponCodeProgress(
+                templateId,
+                CouponCodeState.of(Integer.valueOf(values.get(0).toString())),
+                Long.valueOf(Objects.toString(values.get(1), "0")),
+                Long.valueOf(Objects.toString(values.get(2), "0"))
+        );
+    }
+
+    /**
+     * 批量查询模板的库存, 使用 pipeline 读取每个码池元信息中的计数器
+     * generated 在推送优惠券码时累加, issued 在用户领取成功时累加, 分发节点预取但还没有发出的码不计入 issued;
+     * 分片的码池每个分片在自己的元信息中累加 issued, 再用一次 pipeline 读取各个分片求和
+     */
+    @Override
+    public Map<Integer, TemplateStock> getTemplateStocks(Collection<Integer> ids) {
+
+        List<Integer> templateIds = new ArrayList<>(ids);
+        byte[][] fields = {
+                META_TOTAL.getBytes(StandardCharsets.UTF_8),
+                META_GENERATED.getBytes(StandardCharsets.UTF_8),
+                META_ISSUED.getBytes(StandardCharsets.UTF_8),
+                META_SHARDS.getBytes(StandardCharsets.UTF_8)
+        };
+        List<Object> metas = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            templateIds.forEach(id -> connection.hMGet(metaKey(id).getBytes(StandardCharsets.UTF_8), fields));
+            return null;
+        });
+
+        // 分片的码池: 模板 id -> 分片数
+        Map<Integer, Integer> sharded = new LinkedHashMap<>();
+        for (int i = 0; i != templateIds.size(); ++i) {
+            List<?> values = (List<?>) metas.get(i);
+            int shards = CollectionUtils.isEmpty(values) ? 1 : Integer.parseInt(Objects.toString(values.get(3), "1"));
+            if (shards > 1) {
+                sharded.put(templateIds.get(i), shards);
+            }
+        }
+        Map<Integer, Long> shardIssued = shardIssued(sharded);
+
+        Map<Integer, TemplateStock> stocks = new HashMap<>(templateIds.size() * 2);
+        for (int i = 0; i != templateIds.size(); ++i) {
+
+            List<?> values = (List<?>) metas.get(i);
+            if (CollectionUtils.isEmpty(values) || null == values.get(0)) {
+                continue;
+            }
+
+            long total = Long.parseLong(values.get(0).toString());
+            long generated = Long.parseLong(Objects.toString(values.get(1), "0"));
+            long issued = Long.parseLong(Objects.toString(values.get(2), "0"))
+                    + shardIssued.getOrDefault(templateIds.get(i), 0L);
+            stocks.put(templateIds.get(i), new TemplateStock(
+                    templateIds.get(i), total, generated, issued, total - issued, generated - issued
+            ));
+        }
+
+        return stocks;
+    }
+
+    /**
+     * 读取分片码池各个分片元信息中的 issued 并按模板求和
+     * @param sharded 模板 id -> 分片数
+     */
+    private Map<Integer, Long> shardIssued(Map<Integer, Integer> sharded) {
+
+        if (sharded.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        byte[] field = META_ISSUED.getBytes(StandardCharsets.UTF_8);
+        List<Object> values = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            sharded.forEach((id, shards) -> {
+                for (int shard = 0; shard != shards; ++shard) {
+                    connection.hGet(shardMetaKey(id, shard).getBytes(StandardCharsets.UTF_8), field);
+                }
+            });
+            return null;
+        });
+
+        Map<Integer, Long> issued = new HashMap<>(sharded.size() * 2);
+        int index = 0;
+        for (Map.Entry<Integer, Integer> entry : sharded.entrySet()) {
+            long sum = 0;
+            for (int shard = 0; shard != entry.getValue(); ++shard) {
+                sum += Long.parseLong(Objects.toString(values.get(index++), "0"));
+            }
+            issued.put(entry.getKey(), sum);
+        }
+
+        return issued;
+    }
+
+    /**
+     * 补充一个模板的码池, 多个实例之间通过 Redis 锁互斥
+     * 锁的值是本次补充的 token, 补充超过锁的过期时间之后, 锁可能已经被其他实例获得, 释放时不能删除别人的锁
+     */
+    private void refillCouponCodes(Integer templateId) {
+
+        String lockKey = Constant.RedisPrefix.COUPON_TEMPLATE_LOCK + templateId;
+        String token = UUID.randomUUID().toString();
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(
+                lockKey, token, LOCK_EXPIRE_SECONDS, TimeUnit.SECONDS
+        );
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+
+        try {
+            Map<Object, Object> meta = redisTemplate.opsForHash().entries(metaKey(templateId));
+            if (MapUtils.isEmpty(meta)) {
+                redisTemplate.opsForSet().remove(Constant.RedisPrefix.COUPON_TEMPLATE_LAZY, templateId.toString());
+                return;
+            }
+
+            long total = Long.parseLong(meta.get(META_TOTAL).toString());
+            long generated = Long.parseLong(meta.get(META_GENERATED).toString());
+            // 码池格式以构建时记录的为准
+            boolean binary = "binary".equals(meta.get(META_FORMAT));
+            long remaining = remainingCouponCodes(templateId, meta, binary);
+
+            if (generated < total && remaining < watermark) {
+                if (binary) {
+                    // 补充之前去掉已被领取的部分, 此时剩余的码少于水位, 复制的代价很小
+                    redisTemplate.execute(COMPACT_SCRIPT, Arrays.asList(binKey(templateId), metaKey(templateId)));
+                }
+                generated += pushCouponCodes(templateId, meta, Math.min(segment, total - generated), syncCodeFilter());
+                log.info("Refill CouponTemplate({}) code pool: {}/{}", templateId, generated, total);
+            }
+
+            if (generated >= total) {
+                redisTemplate.opsForSet().remove(Constant.RedisPrefix.COUPON_TEMPLATE_LAZY, templateId.toString());
+                log.info("CouponTemplate({}) code pool is complete", templateId);
+            }
+        } finally {
+            Long released = redisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(lockKey), token);
+            if (!Long.valueOf(1).equals(released)) {
+                log.warn("CouponTemplate({}) refill lock expired before release", templateId);
+            }
+        }
+    }
+
+    /**
+     * 根据码池元信息恢复生成器, 从序号上界继续生成
+     * @param version 同步去重过滤器时的码池推送次数
+     */
+    private long pushCouponCodes(Integer templateId, Map<Object, Object> meta, long count, long version) {
+
+        long generated = Long.parseLong(meta.get(META_GENERATED).toString());
+        // 跳过重复的码之后, 序号上界可能大于已生成个数
+        long cursor = Long.parseLong(Objects.toString(meta.get(META_CURSOR), String.valueOf(generated)));
+        // 码池格式以构建时记录的为准
+        boolean binary = "binary".equals(meta.get(META_FORMAT));
+
+        CouponCodeGenerator generator = generatorOf(
+                meta.get(META_PREFIX), meta.get(META_DATE), meta.get(META_SEED)
+        );
+        codeFilter.register(templateId, generator, cursor);
+
+        return pushCouponCodes(templateId, generator, cursor, count, binary, shardsOf(meta), version);
+    }
+
+    /**
+     * 从 Redis 同步所有已构建码池的模板到去重过滤器, 包括其他实例生成的部分和已经过期的模板
+     * 每个模板只读取生成器参数和序号上界, 本地重放新增的序号即可恢复布隆过滤器;
+     * 既不在登记中也没有过期记录的模板在本地取消登记
+     * @return 同步之前的码池推送次数, 在此之前完成的推送都已经同步
+     */
+    private long syncCodeFilter() {
+
+        // 先读推送次数再读登记, 读到的序号上界不会早于这个次数对应的推送
+        long version = Long.parseLong(Objects.toString(
+                redisTemplate.opsForValue().get(Constant.RedisPrefix.COUPON_TEMPLATE_PUSHED), "0"
+        ));
+        Set<String> templateIds = redisTemplate.opsForSet().members(Constant.RedisPrefix.COUPON_TEMPLATE_REGISTRY);
+        Map<Object, Object> retired = redisTemplate.opsForHash().entries(Constant.RedisPrefix.COUPON_TEMPLATE_RETIRED);
+
+        Set<Integer> retained = new HashSet<>();
+        if (null != templateIds) {
+            templateIds.forEach(id -> retained.add(Integer.valueOf(id)));
+        }
+        retired.keySet().forEach(id -> retained.add(Integer.valueOf(id.toString())));
+        codeFilter.retain(retained);
+
+        // 过期模板的序号上界不再变化, 已经登记过的模板不会重放
+        retired.forEach((id, value) -> {
+            String[] parts = value.toString().split("_");
+            codeFilter.register(Integer.valueOf(id.toString()),
+                    generatorOf(parts[0], parts[1], parts[2]), Long.parseLong(parts[3]));
+        });
+
+        if (CollectionUtils.isEmpty(templateIds)) {
+            return version;
+        }
+
+        List<String> ids = new ArrayList<>(templateIds);
+        List<Object> metas = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            ids.forEach(id -> connection.hMGet(
+                    metaKey(Integer.valueOf(id)).getBytes(StandardCharsets.UTF_8), FILTER_FIELDS
+            ));
+            return null;
+        });
+
+        for (int i = 0; i != ids.size(); ++i) {
+
+            Integer templateId = Integer.valueOf(ids.get(i));
+            List<?> values = (List<?>) metas.get(i);
+
+            // 码池元信息已被删除, 不再参与去重
+            if (CollectionUtils.isEmpty(values) || null == values.get(0)) {
+                codeFilter.unregister(templateId);
+                redisTemplate.opsForSet().remove(Constant.RedisPrefix.COUPON_TEMPLATE_REGISTRY, ids.get(i));
+                continue;
+            }
+
+            codeFilter.register(templateId, generatorOf(values.get(0), values.get(1), values.get(2)), cursorOf(values));
+        }
+
+        log.debug("Sync coupon code filter: {} templates, {} retired, {} bytes",
+                ids.size(), retired.size(), codeFilter.sizeInBytes());
+        return version;
+    }
+
+    /**
+     * 按 FILTER_FIELDS 读取的元信息中的序号上界, 没有记录时以已生成个数代替
+     */
+    private long cursorOf(List<?> values) {
+        return Long.parseLong(Objects.toString(values.get(3), Objects.toString(values.get(4), "0")));
+    }
+
+    private CouponCodeGenerator generatorOf(Object prefix, Object date, Object seed) {
+        return new CouponCodeGenerator(prefix.toString(), date.toString(), Long.parseLong(seed.toString()));
+    }
+
+    /**
+     * 码池中剩余的优惠券码个数
+     */
+    private long remainingCouponCodes(Integer templateId, Map<Object, Object> meta, boolean binary) {
+
+        if (binary) {
+            Long length = redisTemplate.execute((RedisCallback<Long>) connection ->
+                    connection.strLen(binKey(templateId).getBytes(StandardCharsets.UTF_8)));
+            long offset = Long.parseLong(Objects.toString(meta.get(META_OFFSET), "0"));
+            return Math.max(0, (null == length ? 0 : length) - offset) / BINARY_CODE_BYTES;
+        }
+
+        List<Object> sizes = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (byte[] codeKey : codeKeys(templateId, shardsOf(meta))) {
+                connection.lLen(codeKey);
+            }
+            return null;
+        });
+        return sizes.stream().mapToLong(size -> null == size ? 0 : (Long) size).sum();
+    }
+
+    /**
+     * 码池的分片数, 分片之前构建的码池只有一个列表
+     */
+    private int shardsOf(Map<Object, Object> meta) {
+        return Integer.parseInt(Objects.toString(meta.get(META_SHARDS), "1"));
+    }
+
+    /**
+     * 分块生成优惠券码并推送到模板的码池中, 每块生成后立即推送, 内存占用与总数无关
+     * 每块先经过去重过滤器去掉与其他模板重复的码, 再从后续序号继续生成, 直到凑够 count 个
+     * @param version 同步去重过滤器时的码池推送次数
+     * @return 已经被 Redis 确认的优惠券码个数
+     */
+    private long pushCouponCodes(Integer templateId, CouponCodeGenerator generator,
+                                 long fromIndex, long count, boolean binary, int shards, long version) {
+
+        byte[][] redisKeys = binary
+                ? new byte[][]{binKey(templateId).getBytes(StandardCharsets.UTF_8)}
+                : codeKeys(templateId, shards);
+        byte[] metaKey = metaKey(templateId).getBytes(StandardCharsets.UTF_8);
+
+        long[] buffer = new long[(int) Math.min(CHUNK_SIZE, count)];
+        long pushed = 0;
+        long cursor = fromIndex;
+
+        while (pushed < count) {
+
+            int length = (int) Math.min(
+                    Math.min(buffer.length, count - pushed), CouponCodeGenerator.MAX_COUNT - cursor
+            );
+            if (length <= 0) {
+                throw new IllegalStateException("Coupon code space exhausted: " + templateId);
+            }
+            generator.fill(buffer, cursor, length);
+            cursor += length;
+
+            int kept = codeFilter.retainUnique(templateId, buffer, length);
+            // 本地过滤器只能看到同步时已经推送完成的码, 其他实例正在推送的码由共享的集合做最终判断
+            Claim claim = claimCouponCodes(buffer, kept, version);
+            try {
+                kept = claim.codes.length;
+                // 同步之后有其他推送完成时重新同步再判断一次, 之后完成的推送在加入集合时已经冲突, 不会漏判
+                if (claim.version != version) {
+                    version = syncCodeFilter();
+                    kept = codeFilter.retainUnique(templateId, buffer, kept);
+                }
+                codeFilter.accept(templateId, buffer, kept, cursor);
+                if (kept != length) {
+                    log.info("Skip duplicated coupon codes: {}, {}", templateId, length - kept);
+                }
+
+                long counter = pushChunk(redisKeys, metaKey, buffer, kept, length, binary);
+                pushed += kept;
+                // 期间只有本次推送时沿用同步的结果, 否则下一块加入集合之后重新同步
+                if (counter == version + 1) {
+                    version = counter;
+                }
+            } finally {
+                releaseCouponCodes(claim.codes);
+            }
+            log.debug("Push coupon codes chunk to Redis: {}, {}/{}", templateId, pushed, count);
+        }
+
+        return pushed;
+    }
+
+    /**
+     * 把一块优惠券码一次加入正在推送的集合, 只保留加入成功(没有被其他实例同时加入)的码, 保留的码移动到 codes 的前部
+     * @param version 同步去重过滤器时的码池推送次数, 没有码需要加入时原样返回
+     * @return 加入成功的优惠券码(推送之后需要移出集合)和加入时的码池推送次数
+     */
+    @SuppressWarnings("unchecked")
+    private Claim claimCouponCodes(long[] codes, int length, long version) {
+
+        if (0 == length) {
+            return new Claim(version, new long[0]);
+        }
+
+        String[] args = new String[length + 1];
+        args[0] = String.valueOf(CLAIM_EXPIRE_SECONDS);
+        for (int i = 0; i != length; ++i) {
+            args[i + 1] = CouponCodeGenerator.format(codes[i]);
+        }
+        List<Long> result = (List<Long>) redisTemplate.execute(
+                CLAIM_SCRIPT,
+                Arrays.asList(Constant.RedisPrefix.COUPON_TEMPLATE_CLAIM, Constant.RedisPrefix.COUPON_TEMPLATE_PUSHED),
+                (Object[]) args
+        );
+        if (CollectionUtils.isEmpty(result)) {
+            throw new IllegalStateException("Claim coupon codes failed");
+        }
+
+        boolean[] conflicted = new boolean[length];
+        for (int i = 1; i != result.size(); ++i) {
+            conflicted[result.get(i).intValue() - 1] = true;
+        }
+
+        int kept = 0;
+        for (int i = 0; i != length; ++i) {
+            if (!conflicted[i]) {
+                codes[kept++] = codes[i];
+            }
+        }
+
+        return new Claim(result.get(0), Arrays.copyOf(codes, kept));
+    }
+
+    /**
+     * 推送完成(或失败)之后, 把加入过的优惠券码移出正在推送的集合
+     */
+    private void releaseCouponCodes(long[] claimed) {
+
+        if (0 == claimed.length) {
+            return;
+        }
+
+        byte[] claimKey = Constant.RedisPrefix.COUPON_TEMPLATE_CLAIM.getBytes(StandardCharsets.UTF_8);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int from = 0; from < claimed.length; from += PUSH_BATCH_SIZE) {
+                int to = Math.min(claimed.length, from + PUSH_BATCH_SIZE);
+                byte[][] members = new byte[to - from][];
+                for (int i = from; i != to; ++i) {
+                    members[i - from] = CouponCodeGenerator.formatBytes(claimed[i]);
+                }
+                connection.sRem(claimKey, members);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 使用 pipeline 推送一块优惠券码, 并累加已生成个数、序号上界和码池推送次数
+     * 列表格式把这块优惠券码平均分成连续的几段推送到各个分片, 每 PUSH_BATCH_SIZE 个码一条 RPUSH;
+     * 二进制格式整块一条 APPEND
+     * @param redisKeys 列表格式为各个分片的 key, 二进制格式为二进制串的 key
+     * @param length 推送的优惠券码个数
+     * @param consumed 这块优惠券码使用的序号个数(包括被跳过的重复码)
+     * @return 推送之后的码池推送次数
+     */
+    private long pushChunk(byte[][] redisKeys, byte[] metaKey, long[] buffer,
+                          int length, int consumed, boolean binary) {
+
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+
+            if (binary) {
+                if (length > 0) {
+                    connection.append(redisKeys[0], toBinary(buffer, length));
+                }
+            } else {
+                int perShard = (length + redisKeys.length - 1) / redisKeys.length;
+                for (int shard = 0; shard != redisKeys.length; ++shard) {
+                    int end = Math.min(length, (shard + 1) * perShard);
+                    for (int from = shard * perShard; from < end; from += PUSH_BATCH_SIZE) {
+                        rightPush(connection, redisKeys[shard], buffer, from, Math.min(end, from + PUSH_BATCH_SIZE));
+                    }
+                }
+            }
+            connection.hIncrBy(metaKey, META_GENERATED.getBytes(StandardCharsets.UTF_8), length);
+            connection.hIncrBy(metaKey, META_CURSOR.getBytes(StandardCharsets.UTF_8), consumed);
+            connection.incr(Constant.RedisPrefix.COUPON_TEMPLATE_PUSHED.getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+
+        // 每条命令都返回了结果才算推送成功
+        for (Object result : results) {
+            if (!(result instanceof Long)) {
+                throw new IllegalStateException("Push coupon codes to Redis failed: " + results);
+            }
+        }
+
+        return (Long) results.get(results.size() - 1);
+    }
+
+    private void rightPush(RedisConnection connection, byte[] redisKey, long[] buffer, int from, int to) {
+
+        byte[][] values = new byte[to - from][];
+        for (int i = from; i != to; ++i) {
+            values[i - from] = CouponCodeGenerator.formatBytes(buffer[i]);
+        }
+        connection.rPush(redisKey, values);
+    }
+
+    /**
+     * 将优惠券码编码为二进制, 每个码 8 字节: 前 9 位和后 9 位各占一个大端 uint32
+     */
+    private byte[] toBinary(long[] buffer, int length) {
+
+        byte[] bytes = new byte[length * BINARY_CODE_BYTES];
+        for (int i = 0; i != length; ++i) {
+            writeInt(bytes, i * BINARY_CODE_BYTES, (int) (buffer[i] / BINARY_SPLIT));
+            writeInt(bytes, i * BINARY_CODE_BYTES + 4, (int) (buffer[i] % BINARY_SPLIT));
+        }
+        return bytes;
+    }
+
+    private void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * 只有一个分片时为 coupon_template_code_1, 否则为 coupon_template_code_{1_0}, coupon_template_code_{1_1}, ...
+     * 分片只是把一个热门模板的列表拆成几个较小的 key, 减少单个列表上的竞争, 所有分片仍然在同一个 Redis 节点上
+     */
+    private byte[][] codeKeys(Integer templateId, int shards) {
+
+        if (shards <= 1) {
+            return new byte[][]{
+                    String.format("%s%s", Constant.RedisPrefix.COUPON_TEMPLATE, templateId.toString())
+                            .getBytes(StandardCharsets.UTF_8)
+            };
+        }
+
+        byte[][] keys = new byte[shards][];
+        for (int shard = 0; shard != shards; ++shard) {
+            keys[shard] = String.format("%s{%s_%s}", Constant.RedisPrefix.COUPON_TEMPLATE, templateId.toString(), shard)
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+        return keys;
+    }
+
+    /**
+     * coupon_template_code_bin_1
+     */
+    private String binKey(Integer templateId) {
+        return String.format("%s%s", Constant.RedisPrefix.COUPON_TEMPLATE_BIN, templateId.toString());
+    }
+
+    /**
+     * 分片的元信息, coupon_template_code_meta_{1_0}
+     */
+    private String shardMetaKey(Integer templateId, int shard) {
+        return String.format("%s{%s_%s}", Constant.RedisPrefix.COUPON_TEMPLATE_META, templateId.toString(), shard);
+    }
+
+    /**
+     * coupon_template_code_meta_1
+     */
+    private String metaKey(Integer templateId) {
+        return String.format("%s%s", Constant.RedisPrefix.COUPON_TEMPLATE_META, templateId.toString());
+    }
+
+    /**
+     * 一块优惠券码加入正在推送的集合的结果
+     */
+    private static class Claim {
+
+        // 加入集合时的码池推送次数
+        private final long version;
+
+        // 加入成功的优惠券码
+        private final long[] codes;
+
+        Claim(long version, long[] codes) {
+            this.version = version;
+            this.codes = codes;
+        }
+    }
+}
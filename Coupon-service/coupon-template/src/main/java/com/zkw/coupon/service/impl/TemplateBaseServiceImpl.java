@@ -1,18 +1,33 @@
 package com.zkw.coupon.service.impl;
 
+import com.alibaba.fastjson.JSON;
+import com.zkw.coupon.constant.Constant;
 import com.zkw.coupon.dao.CouponTemplateDao;
 import com.zkw.coupon.entity.CouponTemplate;
 import com.zkw.coupon.exception.CouponException;
 import com.zkw.coupon.service.ITemplateBaseService;
+import com.zkw.coupon.snapshot.TemplateSnapshot;
 import com.zkw.coupon.vo.CouponTemplateSDK;
 import lombok.extern.slf4j.Slf4j;
+import com.zkw.coupon.vo.TemplateChanges;
+import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 /**
@@ -22,11 +37,33 @@ import java.util.stream.Collectors;
 @Service
 public class TemplateBaseServiceImpl implements ITemplateBaseService {
 
+    // 递增模板版本号并记录变更的脚本
+    private static final DefaultRedisScript<Long> CHANGED_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        CHANGED_SCRIPT.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/template_changed.lua")
+        ));
+        CHANGED_SCRIPT.setResultType(Long.class);
+    }
+
     // CouponTemplate Dao
     private final CouponTemplateDao couponTemplateDao;
 
-    public TemplateBaseServiceImpl(CouponTemplateDao couponTemplateDao) {
+    // Redis 客户端
+    private final StringRedisTemplate redisTemplate;
+
+    // 可用优惠券模板的快照
+    private final AtomicReference<TemplateSnapshot> snapshot = new AtomicReference<>();
+
+    // 模板变更记录保留的最大个数
+    private final long maxChanges;
+
+    public TemplateBaseServiceImpl(CouponTemplateDao couponTemplateDao, StringRedisTemplate redisTemplate,
+                                   @Value("${coupon.template.changes.max-size:10000}") long maxChanges) {
         this.couponTemplateDao = couponTemplateDao;
+        this.redisTemplate = redisTemplate;
+        this.maxChanges = maxChanges;
     }
 
     /**
@@ -46,30 +83,166 @@ public class TemplateBaseServiceImpl implements ITemplateBaseService {
     }
 
     /**
-     * 查找所有可用的优惠券模板
+     * 查找所有可用的优惠券模板, 直接返回快照中的列表
      * @return {@link CouponTemplateSDK}s
      */
     @Override
     public List<CouponTemplateSDK> findAllUsableTemplate() {
-
-        List<CouponTemplate> templates = couponTemplateDao.findAllByAvailableAndExpired(true, false);
-
-        return templates.stream().map(this::template2TemplateSDK).collect(Collectors.toList());
+        return getTemplateSnapshot().getTemplates();
     }
 
     /**
      * 获取模板 ids 到 CouponTemplateSDK 的映射
+     * 可用的模板从快照中获取, 只有不可用或已过期的模板才查询数据库
      * @param ids 模板 ids
      * @return Map<key: 模板 id, value: CouponTemplateSDK> </key:>
      */
     @Override
     public Map<Integer, CouponTemplateSDK> findIds2TemplateSDK(Collection<Integer> ids) {
 
-        List<CouponTemplate> templates = couponTemplateDao.findAllById(ids);
+        TemplateSnapshot current = getTemplateSnapshot();
+        Map<Integer, CouponTemplateSDK> result = new HashMap<>(ids.size() * 2);
+        List<Integer> missing = new ArrayList<>();
 
-        return templates.stream().map(this::template2TemplateSDK).collect(Collectors.toMap(
-                CouponTemplateSDK::getId, Function.identity()
-        ));
+        ids.forEach(id -> {
+            CouponTemplateSDK template = current.get(id);
+            if (null != template) {
+                result.put(id, template);
+            } else {
+                missing.add(id);
+            }
+        });
+
+        if (CollectionUtils.isNotEmpty(missing)) {
+            couponTemplateDao.findAllById(missing).forEach(t -> result.put(t.getId(), template2TemplateSDK(t)));
+        }
+
+        return result;
+    }
+
+    /**
+     * 获取指定版本号之后发生变更的模板
+     * 变更记录中的模板 id 在快照中则为新增或修改, 否则为已过期; 版本号早于变更记录下界时返回全量
+     * @param since 调用方已经同步到的版本号, 0 表示全量
+     * @return {@link TemplateChanges} 增量(或全量)变更信息
+     */
+    @Override
+    public TemplateChanges findTemplateChanges(long since) {
+
+        TemplateSnapshot current = getTemplateSnapshot();
+        if (since > current.getVersion()) {
+            // 调用方从其他实例同步过更新的版本
+            refreshTemplateSnapshot();
+            current = snapshot.get();
+        }
+
+        long version = current.getVersion();
+        if (since >= version) {
+            return new TemplateChanges(Math.max(since, version), false,
+                    Collections.emptyList(), Collections.emptyList());
+        }
+
+        String floor = redisTemplate.opsForValue().get(Constant.RedisPrefix.COUPON_TEMPLATE_CHANGES_FLOOR);
+        if (since <= 0 || since < (null == floor ? 0 : Long.parseLong(floor))) {
+            return new TemplateChanges(version, true, current.getTemplates(), Collections.emptyList());
+        }
+
+        // 只取 (since, version] 之间的变更, 更新的变更留给下一次同步
+        Set<String> ids = redisTemplate.opsForZSet().rangeByScore(
+                Constant.RedisPrefix.COUPON_TEMPLATE_CHANGES, since + 1, version
+        );
+        List<CouponTemplateSDK> upserts = new ArrayList<>();
+        List<Integer> removedIds = new ArrayList<>();
+
+        if (CollectionUtils.isNotEmpty(ids)) {
+            for (String id : ids) {
+                CouponTemplateSDK template = current.get(Integer.valueOf(id));
+                if (null != template) {
+                    upserts.add(template);
+                } else {
+                    removedIds.add(Integer.valueOf(id));
+                }
+            }
+        }
+
+        return new TemplateChanges(version, false, upserts, removedIds);
+    }
+
+    /**
+     * 获取可用优惠券模板的快照, 快照不存在时从数据库加载
+     * @return {@link TemplateSnapshot} 带版本号的不可变快照
+     */
+    @Override
+    public TemplateSnapshot getTemplateSnapshot() {
+
+        TemplateSnapshot current = snapshot.get();
+        if (null == current) {
+            loadTemplateSnapshot(currentVersion());
+            current = snapshot.get();
+        }
+
+        return current;
+    }
+
+    /**
+     * 检查模板版本号, 快照落后时(其他实例修改了模板)重新加载
+     */
+    @Override
+    public void refreshTemplateSnapshot() {
+
+        long version = currentVersion();
+        TemplateSnapshot current = snapshot.get();
+        if (null == current || current.getVersion() < version) {
+            loadTemplateSnapshot(version);
+        }
+    }
+
+    /**
+     * 模板变为可用或过期之后调用, 递增版本号, 记录变更并重建快照
+     * @param ids 发生变更的模板 ids
+     */
+    @Override
+    public void templateChanged(Collection<Integer> ids) {
+
+        List<String> args = new ArrayList<>(ids.size() + 1);
+        args.add(String.valueOf(maxChanges));
+        ids.forEach(id -> args.add(id.toString()));
+
+        Long version = redisTemplate.execute(CHANGED_SCRIPT, Arrays.asList(
+                Constant.RedisPrefix.COUPON_TEMPLATE_VERSION,
+                Constant.RedisPrefix.COUPON_TEMPLATE_CHANGES,
+                Constant.RedisPrefix.COUPON_TEMPLATE_CHANGES_FLOOR
+        ), args.toArray());
+        log.info("CouponTemplate changed: {}, version: {}", JSON.toJSONString(ids), version);
+
+        loadTemplateSnapshot(null == version ? 0 : version);
+    }
+
+    /**
+     * 从数据库加载可用的模板, 构造新快照并替换旧快照
+     * 版本号在查询数据库之前读取, 查询期间发生的变更会使版本号继续递增, 触发下一次加载
+     */
+    private synchronized void loadTemplateSnapshot(long version) {
+
+        TemplateSnapshot current = snapshot.get();
+        if (null != current && current.getVersion() >= version) {
+            return;
+        }
+
+        List<CouponTemplateSDK> templates = couponTemplateDao.findAllByAvailableAndExpired(true, false)
+                .stream().map(this::template2TemplateSDK).collect(Collectors.toList());
+        snapshot.set(new TemplateSnapshot(version, templates));
+
+        log.info("Load CouponTemplate snapshot: version {}, {} templates", version, templates.size());
+    }
+
+    /**
+     * Redis 中记录的模板版本号
+     */
+    private long currentVersion() {
+
+        String version = redisTemplate.opsForValue().get(Constant.RedisPrefix.COUPON_TEMPLATE_VERSION);
+        return null == version ? 0 : Long.parseLong(version);
     }
 
     /**
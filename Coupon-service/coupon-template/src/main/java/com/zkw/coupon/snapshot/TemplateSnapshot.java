@@ -0,0 +1,46 @@
+package com.zkw.coupon.snapshot;
+
+import com.zkw.coupon.vo.CouponTemplateSDK;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 可用优惠券模板的不可变快照
+ * 每次模板变更时整体重建并原子替换, 读取时不需要加锁, 也不需要再访问数据库
+ */
+public class TemplateSnapshot {
+
+    // 快照对应的模板版本号
+    private final long version;
+
+    // 所有可用的优惠券模板
+    private final List<CouponTemplateSDK> templates;
+
+    // 模板 id -> 可用的优惠券模板
+    private final Map<Integer, CouponTemplateSDK> id2Template;
+
+    public TemplateSnapshot(long version, List<CouponTemplateSDK> templates) {
+
+        Map<Integer, CouponTemplateSDK> id2Template = new LinkedHashMap<>(templates.size() * 2);
+        templates.forEach(t -> id2Template.put(t.getId(), t));
+
+        this.version = version;
+        this.templates = Collections.unmodifiableList(templates);
+        this.id2Template = Collections.unmodifiableMap(id2Template);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<CouponTemplateSDK> getTemplates() {
+        return templates;
+    }
+
+    public CouponTemplateSDK get(Integer id) {
+        return id2Template.get(id);
+    }
+}
@@ -0,0 +1,27 @@
+package com.zkw.coupon.vo;
+
+import com.zkw.coupon.job.CouponCodeState;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 码池构建进度对象
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CouponCodeProgress {
+
+    // 优惠券模板主键
+    private Integer templateId;
+
+    // 构建状态
+    private CouponCodeState state;
+
+    // 已生成的优惠券码个数
+    private Long generated;
+
+    // 优惠券模板总数
+    private Long total;
+}
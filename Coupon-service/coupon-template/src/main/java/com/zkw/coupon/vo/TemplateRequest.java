@@ -3,6 +3,7 @@ package com.zkw.coupon.vo;
 import com.zkw.coupon.constant.CouponCategory;
 import com.zkw.coupon.constant.DistributeTarget;
 import com.zkw.coupon.constant.ProductLine;
+import com.zkw.coupon.generator.CouponCodeGenerator;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -56,7 +57,7 @@ public class TemplateRequest {
                 && null != ProductLine.of(productLine)
                 && null != DistributeTarget.of(target);
 
-        boolean numValid = count > 0 && userId > 0;
+        boolean numValid = count > 0 && count <= CouponCodeGenerator.MAX_COUNT && userId > 0;
 
         return stringValid && enumValid && numValid && rule.validate();
     }
@@ -0,0 +1,32 @@
+package com.zkw.coupon.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 优惠券模板库存对象
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TemplateStock {
+
+    // 优惠券模板主键
+    private Integer templateId;
+
+    // 优惠券模板总数
+    private Long total;
+
+    // 已生成(推送到码池)的优惠券码个数
+    private Long generated;
+
+    // 已发放的优惠券码个数
+    private Long issued;
+
+    // 剩余可发放的个数(包括尚未生成的部分)
+    private Long remaining;
+
+    // 码池中剩余的优惠券码个数
+    private Long pooled;
+}
@@ -0,0 +1,12 @@
+-- 把一块优惠券码加入正在推送的集合, 一次调用完成, 返回码池推送次数和加入失败(其他实例正在推送)的码的位置
+-- KEYS[1]: 正在推送的集合, KEYS[2]: 码池推送次数
+-- ARGV[1]: 集合的过期时间(秒), ARGV[2...]: 优惠券码
+-- 返回 {推送次数, 冲突的位置(从 1 开始)...}
+local result = {tonumber(redis.call('GET', KEYS[2]) or '0')}
+for i = 2, #ARGV do
+    if redis.call('SADD', KEYS[1], ARGV[i]) == 0 then
+        result[#result + 1] = i - 1
+    end
+end
+redis.call('EXPIRE', KEYS[1], ARGV[1])
+return result
@@ -0,0 +1,14 @@
+-- 压缩二进制格式的优惠券码: 去掉已经被领取的部分, 并将读取偏移量归零
+-- KEYS[1]: 二进制优惠券码 key, KEYS[2]: 码池元信息 key
+-- 返回值: 压缩后剩余的字节数
+local offset = tonumber(redis.call('HGET', KEYS[2], 'offset') or '0')
+if offset > 0 then
+    local rest = redis.call('GETRANGE', KEYS[1], offset, -1)
+    if string.len(rest) > 0 then
+        redis.call('SET', KEYS[1], rest)
+    else
+        redis.call('DEL', KEYS[1])
+    end
+    redis.call('HSET', KEYS[2], 'offset', 0)
+end
+return redis.call('STRLEN', KEYS[1])
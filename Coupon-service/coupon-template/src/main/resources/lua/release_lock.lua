@@ -0,0 +1,7 @@
+-- 释放锁(或租约), 只有持有者才能释放, 过期之后被其他实例重新获得的锁不会被误删
+-- KEYS[1]: 锁 key, ARGV[1]: 持有者的 token
+-- 返回 1 表示释放成功, 0 表示锁已经不属于该持有者
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('DEL', KEYS[1])
+end
+return 0
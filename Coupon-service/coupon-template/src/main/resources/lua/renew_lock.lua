@@ -0,0 +1,7 @@
+-- 续期锁(或租约), 只有持有者才能续期
+-- KEYS[1]: 锁 key, ARGV[1]: 持有者的 token, ARGV[2]: 有效期(秒)
+-- 返回 1 表示续期成功, 0 表示锁已经不属于该持有者
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('EXPIRE', KEYS[1], ARGV[2])
+end
+return 0
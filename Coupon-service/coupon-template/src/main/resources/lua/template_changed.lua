@@ -0,0 +1,15 @@
+-- 递增模板版本号, 并以新版本号记录发生变更的模板 id
+-- KEYS[1]: 模板版本号 key, KEYS[2]: 模板变更记录 key(zset, score 为最后一次变更的版本号), KEYS[3]: 变更记录下界 key
+-- ARGV[1]: 变更记录保留的最大个数, ARGV[2..]: 发生变更的模板 id
+local version = redis.call('INCR', KEYS[1])
+for i = 2, #ARGV do
+    redis.call('ZADD', KEYS[2], version, ARGV[i])
+end
+-- 超出的部分从最早的变更开始删除, 下界记录被删除的最大版本号, 早于下界的调用方只能全量同步
+local overflow = redis.call('ZCARD', KEYS[2]) - tonumber(ARGV[1])
+if overflow > 0 then
+    local removed = redis.call('ZRANGE', KEYS[2], 0, overflow - 1, 'WITHSCORES')
+    redis.call('SET', KEYS[3], removed[#removed])
+    redis.call('ZREMRANGEBYRANK', KEYS[2], 0, overflow - 1)
+end
+return version
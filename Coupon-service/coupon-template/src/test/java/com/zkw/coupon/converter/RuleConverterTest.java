@@ -0,0 +1,53 @@
+package com.zkw.coupon.converter;
+
+import com.zkw.coupon.constant.PeriodType;
+import com.zkw.coupon.vo.TemplateRule;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 优惠券规则属性转换器测试
+ */
+public class RuleConverterTest {
+
+    private final RuleConverter converter = new RuleConverter();
+
+    @Test
+    public void testSharedRule() {
+
+        String column = column();
+
+        TemplateRule first = converter.convertToEntityAttribute(column);
+        TemplateRule second = converter.convertToEntityAttribute(column);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(column, converter.convertToDatabaseColumn(first));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSharedRuleReadOnly() {
+        converter.convertToEntityAttribute(column()).getDiscount().setQuota(50);
+    }
+
+    @Test
+    public void testCopyModifiable() {
+
+        String column = column();
+        TemplateRule copy = converter.convertToEntityAttribute(column).copy();
+        copy.setLimitation(5);
+        copy.getDiscount().setQuota(50);
+
+        TemplateRule shared = converter.convertToEntityAttribute(column);
+        Assert.assertEquals(Integer.valueOf(1), shared.getLimitation());
+        Assert.assertEquals(Integer.valueOf(20), shared.getDiscount().getQuota());
+    }
+
+    private String column() {
+        return converter.convertToDatabaseColumn(new TemplateRule(
+                new TemplateRule.Expiration(PeriodType.REGULAR.getCode(), 1, Long.MAX_VALUE),
+                new TemplateRule.Discount(20, 199),
+                1,
+                new TemplateRule.Usage("安徽省", "桐城市", "[1, 3]"),
+                "[]"
+        ));
+    }
+}
@@ -0,0 +1,91 @@
+package com.zkw.coupon.generator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 跨模板的优惠券码去重过滤器测试
+ */
+public class CouponCodeFilterTest {
+
+    @Test
+    public void testRetainUnique() {
+
+        // 初始容量很小, 过程中会多次扩容
+        CouponCodeFilter filter = new CouponCodeFilter(1_000, 0.01);
+        Set<Long> all = new HashSet<>();
+
+        for (int id = 1; id <= 5; ++id) {
+
+            CouponCodeGenerator generator = new CouponCodeGenerator("1001", "190101", id);
+            filter.register(id, generator, 0);
+
+            long[] codes = new long[20_000];
+            generator.fill(codes, 0, codes.length);
+            int kept = filter.retainUnique(id, codes, codes.length);
+            filter.accept(id, codes, kept, codes.length);
+
+            for (int i = 0; i != kept; ++i) {
+                Assert.assertTrue(all.add(codes[i]));
+            }
+        }
+    }
+
+    @Test
+    public void testRegisterReplay() {
+
+        CouponCodeGenerator generator = new CouponCodeGenerator("1001", "190101", 1L);
+        CouponCodeFilter filter = new CouponCodeFilter(1_000, 0.01);
+        filter.register(1, generator, 10_000);
+        Assert.assertEquals(10_000, filter.cursorOf(1));
+
+        // 同样的码属于其他模板时会被全部去掉
+        long[] codes = new long[10_000];
+        generator.fill(codes, 0, codes.length);
+        filter.register(2, new CouponCodeGenerator("1001", "190101", 2L), 0);
+        Assert.assertEquals(0, filter.retainUnique(2, codes, codes.length));
+    }
+
+    @Test
+    public void testRetain() {
+
+        CouponCodeGenerator generator = new CouponCodeGenerator("1001", "190101", 1L);
+        CouponCodeFilter filter = new CouponCodeFilter(1_000, 0.01);
+        filter.register(1, generator, 10_000);
+        filter.register(2, new CouponCodeGenerator("1001", "190101", 2L), 0);
+        filter.register(3, new CouponCodeGenerator("1001", "190101", 3L), 0);
+
+        // 模板 1 已经过期但仍然保留, 它的码不能被其他模板使用; 模板 3 不在保留的集合中, 取消登记
+        filter.retain(Arrays.asList(1, 2));
+        Assert.assertEquals(10_000, filter.cursorOf(1));
+        Assert.assertEquals(-1, filter.cursorOf(3));
+
+        long[] codes = new long[10_000];
+        generator.fill(codes, 0, codes.length);
+        Assert.assertEquals(0, filter.retainUnique(2, codes, codes.length));
+    }
+
+    @Test
+    public void testRetainUniqueWithoutAccept() {
+
+        CouponCodeGenerator generator = new CouponCodeGenerator("1001", "190101", 1L);
+        CouponCodeFilter filter = new CouponCodeFilter(1_000, 0.01);
+        filter.register(1, generator, 0);
+
+        // 只判断不确认时布隆过滤器不变, 同一块码可以重复判断
+        long[] codes = new long[10_000];
+        generator.fill(codes, 0, codes.length);
+        long size = filter.sizeInBytes();
+        Assert.assertEquals(codes.length, filter.retainUnique(1, codes, codes.length));
+        Assert.assertEquals(codes.length, filter.retainUnique(1, codes, codes.length));
+        Assert.assertEquals(size, filter.sizeInBytes());
+        Assert.assertEquals(0, filter.cursorOf(1));
+
+        filter.accept(1, codes, codes.length, codes.length);
+        Assert.assertEquals(codes.length, filter.cursorOf(1));
+    }
+}
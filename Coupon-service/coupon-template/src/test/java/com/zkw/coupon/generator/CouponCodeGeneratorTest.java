@@ -0,0 +1,93 @@
+package com.zkw.coupon.generator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 优惠券码生成器测试
+ */
+public class CouponCodeGeneratorTest {
+
+    private final CouponCodeGenerator generator = new CouponCodeGenerator("1001", "190101", 20190101L);
+
+    @Test
+    public void testCodeLayout() {
+
+        long[] codes = new long[1000];
+        generator.fill(codes, 0, codes.length);
+
+        char[] date = "190101".toCharArray();
+        Arrays.sort(date);
+
+        for (long code : codes) {
+            String str = CouponCodeGenerator.format(code);
+            Assert.assertEquals(CouponCodeGenerator.CODE_LENGTH, str.length());
+            Assert.assertTrue(str.startsWith("1001"));
+
+            // 中间六位是日期数字的重排
+            char[] mid6 = str.substring(4, 10).toCharArray();
+            Arrays.sort(mid6);
+            Assert.assertArrayEquals(date, mid6);
+
+            // 后八位首位非 0
+            Assert.assertNotEquals('0', str.charAt(10));
+        }
+    }
+
+    @Test
+    public void testUniqueCodes() {
+
+        int count = 200_000;
+        long[] codes = new long[count];
+        generator.fill(codes, 0, count);
+
+        Set<Long> unique = new HashSet<>(count * 2);
+        for (long code : codes) {
+            unique.add(code);
+        }
+        Assert.assertEquals(count, unique.size());
+    }
+
+    @Test
+    public void testFillFromIndex() {
+
+        long[] all = new long[100];
+        long[] tail = new long[50];
+        generator.fill(all, 0, all.length);
+        generator.fill(tail, 50, tail.length);
+
+        // 后八位只与序号有关
+        for (int i = 0; i != tail.length; ++i) {
+            Assert.assertEquals(all[50 + i] % 100_000_000L, tail[i] % 100_000_000L);
+        }
+    }
+
+    @Test
+    public void testContains() {
+
+        long[] codes = new long[1000];
+        generator.fill(codes, 0, codes.length);
+
+        // 同样的种子和序号生成同样的优惠券码
+        Assert.assertEquals(codes[500], generator.codeAt(500));
+
+        for (long code : codes) {
+            Assert.assertTrue(generator.contains(code, codes.length));
+        }
+        Assert.assertFalse(generator.contains(codes[999], 500));
+
+        CouponCodeGenerator other = new CouponCodeGenerator("1001", "190101", 20190102L);
+        int contained = 0;
+        for (long code : codes) {
+            if (other.contains(code, CouponCodeGenerator.MAX_COUNT)) {
+                ++contained;
+            }
+        }
+        // 后八位相同的概率为 1, 中间六位相同的概率约为 1/180 (日期中有重复数字)
+        Assert.assertTrue(contained < 50);
+    }
+}
@@ -0,0 +1,45 @@
+package com.zkw.coupon.job;
+
+import com.zkw.coupon.entity.CouponTemplate;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * 码池构建任务优先级测试
+ */
+public class CouponCodeJobTest {
+
+    @Test
+    public void testSmallJobFirst() {
+
+        PriorityBlockingQueue<CouponCodeJob> queue = new PriorityBlockingQueue<>();
+        queue.offer(job(1, 1_000_000, 0));
+        queue.offer(job(2, 1_000, 0));
+
+        Assert.assertEquals(Integer.valueOf(2), queue.poll().getTemplate().getId());
+    }
+
+    @Test
+    public void testAging() {
+
+        // 大模板已经等待了 200 秒, 按每秒 10000 个折算之后排在刚提交的小模板之前
+        PriorityBlockingQueue<CouponCodeJob> queue = new PriorityBlockingQueue<>();
+        queue.offer(job(1, 1_000_000, 0));
+        queue.offer(job(2, 1_000, 200_000));
+
+        Assert.assertEquals(Integer.valueOf(1), queue.poll().getTemplate().getId());
+    }
+
+    private CouponCodeJob job(Integer id, int count, long submitted) {
+
+        CouponTemplate template = new CouponTemplate();
+        template.setId(id);
+        template.setCount(count);
+        CouponCodeJob job = new CouponCodeJob(template, id, submitted);
+        job.requeue(id, 0, 10_000);
+
+        return job;
+    }
+}